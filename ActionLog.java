@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous writer for the action log. Handler threads drop their line into a
+// bounded ring buffer and return; one writer thread drains whatever has piled
+// up and writes it with a single call on a FileChannel that stays open.
+//
+// Durability: a reply never waits for the log. What reaches the disk depends on
+// SERVER_LOG_FSYNC:
+//   none     - lines are handed to the OS, a power loss can drop anything not yet flushed by it
+//   interval - fsync at most every SERVER_LOG_FSYNC_INTERVAL_MS, a crash loses at most that window
+//   batch    - fsync after every batch, a crash loses only entries still in the ring buffer
+// When the buffer is full producers wait for the writer instead of dropping entries.
+//
+// The log is a series of LogSegments, <file>.000001, <file>.000002, ... A segment is
+// sealed once it reaches SERVER_LOG_SEGMENT_MB or is SERVER_LOG_ROTATE_MINUTES old;
+// sealed segments are gzip compressed in the background unless SERVER_LOG_COMPRESS=off.
+// history() answers per client queries from the segments' indexes.
+public class ActionLog implements AutoCloseable {
+    public enum FsyncPolicy { NONE, INTERVAL, BATCH }
+
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final Path base;
+    private final long segmentBytes;
+    private final long rotateNanos;
+    private final boolean compress;
+    // Oldest first, the last one is being written
+    private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+    // Owned by the writer thread
+    private LogSegment active;
+    private FileChannel channel;
+    private long activeSize;
+    private long activeOpened;
+    private final ExecutorService compressor = daemonExecutor("action-log-compressor", 1);
+    // Runs history queries, file reads stay off the session threads
+    private final ExecutorService readers = daemonExecutor("action-log-reader", 2);
+
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalNanos;
+
+    // The fields of each entry, encoded by the writer thread
+    private final String[] ids;
+    private final String[] actions;
+    private final long[] amounts;
+    private final long[] timestamps;
+    private final LogEncoder encoder = new LogEncoder();
+    // Sequence published in each slot, -1 while empty
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean writerIdle;
+    private volatile boolean running = true;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(MAX_BATCH_BYTES);
+    private long lastFsync = System.nanoTime();
+    // Time of each batch write including its fsync, in microseconds
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    public ActionLog(String file, int capacity, FsyncPolicy policy, long fsyncIntervalMillis) throws IOException {
+        this(file, capacity, policy, fsyncIntervalMillis, 64L * 1024 * 1024, 0, false);
+    }
+
+    // segmentBytes and rotateMillis bound a segment's size and age (0: no age limit)
+    public ActionLog(String file, int capacity, FsyncPolicy policy, long fsyncIntervalMillis,
+                     long segmentBytes, long rotateMillis, boolean compress) throws IOException {
+        this.base = Paths.get(file).toAbsolutePath();
+        this.segmentBytes = segmentBytes;
+        this.rotateNanos = TimeUnit.MILLISECONDS.toNanos(rotateMillis);
+        this.compress = compress;
+        this.policy = policy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+
+        Files.createDirectories(base.getParent());
+        long last = recover();
+        openSegment(last + 1);
+
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ids = new String[size];
+        this.actions = new String[size];
+        this.amounts = new long[size];
+        this.timestamps = new long[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+
+        this.writer = new Thread(this::run, "action-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private static ExecutorService daemonExecutor(String name, int threads) {
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Loads the segments of earlier runs and returns the highest sequence found. A segment
+    // without index was being written when the server stopped, it is indexed and sealed now.
+    private long recover() throws IOException {
+        TreeSet<Long> sequences = new TreeSet<>();
+        String prefix = base.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(base.getParent(), prefix + "*")) {
+            for (Path path : files) {
+                String rest = path.getFileName().toString().substring(prefix.length());
+                int end = rest.indexOf('.');
+                String digits = end < 0 ? rest : rest.substring(0, end);
+                if (digits.length() == 6 && digits.chars().allMatch(Character::isDigit)) {
+                    sequences.add(Long.parseLong(digits));
+                }
+            }
+        }
+        for (long sequence : sequences) {
+            LogSegment segment = new LogSegment(base, sequence);
+            if (segment.isSealed()) {
+                segment.load();
+            } else if (Files.exists(segment.file())) {
+                segment.scan();
+                segment.seal();
+            } else {
+                continue;
+            }
+            segments.add(segment);
+            compressLater(segment);
+        }
+        return sequences.isEmpty() ? 0 : sequences.last();
+    }
+
+    private void openSegment(long sequence) throws IOException {
+        active = new LogSegment(base, sequence);
+        channel = FileChannel.open(active.file(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        activeSize = 0;
+        activeOpened = System.nanoTime();
+        segments.add(active);
+    }
+
+    // Seals the active segment and starts the next one, on the writer thread
+    private void rotate() {
+        try {
+            channel.force(false);
+            channel.close();
+            active.seal();
+            compressLater(active);
+            openSegment(active.sequence + 1);
+        } catch (IOException e) {
+            System.err.println("Error rotating log file: " + e.getMessage());
+        }
+    }
+
+    private void compressLater(LogSegment segment) {
+        if (!compress) {
+            return;
+        }
+        compressor.execute(() -> {
+            try {
+                segment.compress();
+            } catch (IOException e) {
+                System.err.println("Error compressing log segment " + segment.file() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private boolean rotationDue() {
+        return activeSize > 0 && rotateNanos > 0 && System.nanoTime() - activeOpened >= rotateNanos;
+    }
+
+    // The client's entries logged between from and to (epoch milliseconds, inclusive), oldest
+    // first and at most limit of them. Only segments and blocks whose index mentions the
+    // client in that period are read. Entries still queued for the writer are not included.
+    public CompletableFuture<List<String>> history(String id, long from, long to, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<String> result = new ArrayList<>();
+            for (LogSegment segment : segments) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                if (!segment.overlaps(from, to)) {
+                    continue;
+                }
+                try {
+                    segment.read(id, from, to, limit, result);
+                } catch (IOException e) {
+                    System.err.println("Error reading log segment " + segment.file() + ": " + e.getMessage());
+                }
+            }
+            return result;
+        }, readers);
+    }
+
+    // Queues one entry, blocking only while the ring buffer is full. Only references and
+    // numbers are stored, the line is built by the writer straight into its batch.
+    public void append(String id, String action, long amount) {
+        long timestamp = System.currentTimeMillis();
+        if (!running) {
+            System.err.println("Error writing to log file: log is closed");
+            return;
+        }
+        long seq = claimed.getAndIncrement();
+        while (seq - consumed.get() >= ids.length) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(50_000);
+        }
+        int index = (int) (seq & mask);
+        ids[index] = id;
+        actions[index] = action;
+        amounts[index] = amount;
+        timestamps[index] = timestamp;
+        published.set(index, seq);
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void run() {
+        long next = 0;
+        while (running || next < claimed.get()) {
+            int index = (int) (next & mask);
+            if (published.get(index) != next) {
+                // Nothing new: sleep until a producer wakes us or an interval fsync is due
+                writerIdle = true;
+                if (published.get(index) != next && running) {
+                    LockSupport.parkNanos(policy == FsyncPolicy.INTERVAL ? fsyncIntervalNanos : TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                writerIdle = false;
+                maybeFsync(false);
+                if (rotationDue()) {
+                    rotate();
+                }
+                continue;
+            }
+
+            batch.clear();
+            boolean full = false;
+            while (published.get(index) == next) {
+                int maxLength = LogEncoder.maxLength(ids[index], actions[index]);
+                if (maxLength > batch.remaining() && batch.position() > 0) {
+                    break;
+                }
+                // The segment is full, this entry starts the next one
+                if (activeSize + batch.position() + maxLength > segmentBytes && activeSize + batch.position() > 0) {
+                    full = true;
+                    break;
+                }
+                if (maxLength <= batch.remaining()) {
+                    int position = batch.position();
+                    encoder.encode(batch, timestamps[index], ids[index], actions[index], amounts[index]);
+                    active.add(ids[index], timestamps[index], activeSize + position, batch.position() - position);
+                } else {
+                    System.err.println("Error writing to log file: entry too large");
+                }
+                ids[index] = null;
+                actions[index] = null;
+                next++;
+                index = (int) (next & mask);
+            }
+
+            batch.flip();
+            long start = System.nanoTime();
+            try {
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing to log file: " + e.getMessage());
+            }
+            activeSize += batch.limit();
+            active.setWritten(activeSize);
+            consumed.set(next);
+            maybeFsync(policy == FsyncPolicy.BATCH);
+            writeLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            if (full || rotationDue()) {
+                rotate();
+            }
+        }
+        maybeFsync(true);
+    }
+
+    private void maybeFsync(boolean force) {
+        long now = System.nanoTime();
+        boolean due = policy == FsyncPolicy.INTERVAL && now - lastFsync >= fsyncIntervalNanos;
+        if (!force && !due) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Error syncing log file: " + e.getMessage());
+        }
+        lastFsync = now;
+    }
+
+    public LatencyHistogram writeLatency() {
+        return writeLatency;
+    }
+
+    // Entries waiting for the writer
+    public long queued() {
+        return Math.max(0, claimed.get() - consumed.get());
+    }
+
+    // Drains the queued entries, syncs them and closes the file
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            channel.close();
+            // A clean shutdown seals the last segment, so the next start need not index it again
+            if (activeSize > 0) {
+                active.seal();
+            } else {
+                Files.deleteIfExists(active.file());
+            }
+            compressor.shutdown();
+            readers.shutdown();
+        } catch (InterruptedException | IOException e) {
+            System.err.println("Error closing log file.");
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sheds load before it costs anything. Connections are admitted right after
+// accept, before the TLS handshake: beyond SERVER_MAX_CONNECTIONS in total or
+// SERVER_MAX_CONNECTIONS_PER_IP from one address the client gets the plain text
+// line "BUSY <retry after ms>" and is closed. Logged in clients are limited to
+// SERVER_RATE_LIMIT counter operations per second per id (token bucket with
+// SERVER_RATE_BURST), anything above is answered with an error and a retry time.
+// The buckets are kept by id, across sessions, until they are full again.
+public class AdmissionController {
+    private final int maxConnections;
+    private final int maxPerAddress;
+    private final long retryAfterMillis;
+    // Token bucket as "theoretical arrival time": each operation pushes it one interval
+    // further, and it may run at most burst intervals ahead of now
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final TimerWheel timers;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+    // A full bucket acts like a missing one, so those are dropped
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong bucketsSwept = new AtomicLong(System.nanoTime());
+    // Not held to the per address cap, the other cluster nodes relay many clients each
+    private Set<InetAddress> exempt = Set.of();
+
+    public AdmissionController(int maxConnections, int maxPerAddress, long retryAfterMillis,
+                               int ratePerSecond, int burst, TimerWheel timers) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        this.retryAfterMillis = retryAfterMillis;
+        this.intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.timers = timers;
+    }
+
+    // Set before the server accepts connections
+    public void exempt(Set<InetAddress> addresses) {
+        exempt = Set.copyOf(addresses);
+    }
+
+    // Takes a connection slot for the address, false when the server or the address is at its limit
+    public boolean tryAdmit(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return false;
+        }
+        if (maxPerAddress <= 0 || exempt.contains(address)) {
+            return true;
+        }
+        boolean[] admitted = new boolean[1];
+        perAddress.compute(address, (key, count) -> {
+            int current = count == null ? 0 : count;
+            admitted[0] = current < maxPerAddress;
+            return admitted[0] ? current + 1 : count;
+        });
+        if (!admitted[0]) {
+            connections.decrementAndGet();
+        }
+        return admitted[0];
+    }
+
+    // Gives back the slot taken by tryAdmit
+    public void release(InetAddress address) {
+        connections.decrementAndGet();
+        if (maxPerAddress > 0 && !exempt.contains(address)) {
+            perAddress.computeIfPresent(address, (key, count) -> count <= 1 ? null : count - 1);
+        }
+    }
+
+    public int connections() {
+        return connections.get();
+    }
+
+    // Jittered so rejected clients do not all come back at the same moment
+    public long retryAfterMillis() {
+        return retryAfterMillis + ThreadLocalRandom.current().nextLong(retryAfterMillis / 2 + 1);
+    }
+
+    // Tells the client to come back later and closes the connection, without a handshake
+    public void reject(Socket socket) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(busyLine());
+            out.flush();
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            // The client is gone already
+        }
+        // Closing with the client's hello unread would reset the connection and could
+        // destroy the BUSY line before the client read it, so drain it first
+        timers.newTimeout(() -> {
+            try {
+                InputStream in = socket.getInputStream();
+                in.skip(in.available());
+                socket.close();
+            } catch (IOException e) {
+                // Closed either way
+            }
+        }, 500);
+    }
+
+    // The same for a channel accepted in blocking mode
+    public void reject(SocketChannel channel) {
+        try {
+            ByteBuffer line = ByteBuffer.wrap(busyLine());
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            // The client is gone already
+        }
+        timers.newTimeout(() -> {
+            try {
+                channel.read(ByteBuffer.allocate(4096));
+                channel.close();
+            } catch (IOException e) {
+                // Closed either way
+            }
+        }, 500);
+    }
+
+    private byte[] busyLine() {
+        return ("BUSY " + retryAfterMillis() + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Takes a token from the id's bucket. Returns 0 when the operation may go ahead,
+    // otherwise the milliseconds until it would be allowed.
+    public long tryAcquire(String id) {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(id);
+        if (bucket == null) {
+            sweepBuckets(now);
+            bucket = buckets.computeIfAbsent(id, key -> new AtomicLong(now));
+        }
+        while (true) {
+            long arrival = bucket.get();
+            long next = (arrival - now < 0 ? now : arrival) + intervalNanos;
+            long wait = next - now - burstNanos;
+            if (wait > 0) {
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    // At most once a minute, drops the buckets that have filled up since their last operation
+    private void sweepBuckets(long now) {
+        long swept = bucketsSwept.get();
+        if (now - swept >= TimeUnit.MINUTES.toNanos(1) && bucketsSwept.compareAndSet(swept, now)) {
+            for (String id : buckets.keySet()) {
+                buckets.computeIfPresent(id, (key, bucket) -> bucket.get() - now <= 0 ? null : bucket);
+            }
+        }
+    }
+
+    public int buckets() {
+        return buckets.size();
+    }
+}
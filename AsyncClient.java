@@ -0,0 +1,504 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+// Client library for services that embed the client. An AsyncClient is a pool of
+// logged in TLS connections to one server for one id. Every call returns at once
+// with a CompletableFuture of the parsed reply: commands are sent in binary framing
+// and matched to their replies by request id, so any number of them can be in
+// flight on each connection and one thread can drive thousands of operations.
+// Commands issued close together go out in one write.
+//
+// Connections are opened when first needed, pinged while idle and reopened after
+// they fail, waiting as long as a BUSY server asked. Commands that were in flight
+// on a failed connection complete exceptionally, they are not resent since INCREASE
+// and DECREASE are not idempotent. Futures complete on the connection's reader
+// thread, use the async variants of the CompletableFuture methods for slow callbacks.
+//
+// The password is sent as given; the interactive Client sends the SHA-256 hex of
+// what the user typed. The server allows three sessions per id, so at most three
+// connections are pooled.
+public class AsyncClient implements AutoCloseable {
+    // An ERROR reply, or a login the server refused
+    public static class ServerException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ServerException(String message) {
+            super(message);
+        }
+    }
+
+    public record History(List<String> entries, boolean truncated) {
+    }
+
+    private static final int MAX_CONNECTIONS = 3;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private final String host;
+    private final int port;
+    private final String id;
+    private final String password;
+    private final SSLSocketFactory socketFactory;
+    private final Slot[] slots;
+    private final int maxInFlight;
+    private final long healthCheckMillis;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final TimerWheel timers;
+    private int next;
+    private volatile boolean closed;
+
+    public AsyncClient(String host, int port, String truststore, String truststorePassword, String id, String password) throws Exception {
+        this(host, port, truststore, truststorePassword, id, password, MAX_CONNECTIONS, 4096, 30000);
+    }
+
+    // connections is capped at three, maxInFlight applies per connection, a healthCheckMillis of 0 disables the pings
+    public AsyncClient(String host, int port, String truststore, String truststorePassword, String id, String password,
+                       int connections, int maxInFlight, long healthCheckMillis) throws Exception {
+        this.host = host;
+        this.port = port;
+        this.id = id;
+        this.password = password;
+        this.socketFactory = Client.sslContext(truststore, truststorePassword).getSocketFactory();
+        this.slots = new Slot[Math.max(1, Math.min(MAX_CONNECTIONS, connections))];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+        this.maxInFlight = maxInFlight;
+        this.healthCheckMillis = healthCheckMillis;
+        this.timers = new TimerWheel(100, 64, executor);
+        if (healthCheckMillis > 0) {
+            timers.newTimeout(this::healthCheck, healthCheckMillis);
+        }
+    }
+
+    // The counter after the increase
+    public CompletableFuture<Long> increase(int amount) {
+        return submit(new CounterRequest(), CommandParser.OP_INCREASE, amount);
+    }
+
+    // The counter after the decrease
+    public CompletableFuture<Long> decrease(int amount) {
+        return submit(new CounterRequest(), CommandParser.OP_DECREASE, amount);
+    }
+
+    // The id's log entries between two times in epoch milliseconds, oldest first
+    public CompletableFuture<History> history(long from, long to) {
+        return submit(new HistoryRequest(), CommandParser.OP_HISTORY, from, to);
+    }
+
+    // Metric name to value, for ids the server lists in SERVER_ADMIN_IDS
+    public CompletableFuture<Map<String, Long>> stats() {
+        return submit(new StatsRequest(), CommandParser.OP_STATS);
+    }
+
+    // Round trip to the server in nanoseconds
+    public CompletableFuture<Long> ping() {
+        long start = System.nanoTime();
+        return submit(new TextRequest(), CommandParser.OP_PING).thenApply(pong -> System.nanoTime() - start);
+    }
+
+    // Connections currently logged in
+    public int connected() {
+        int count = 0;
+        for (Slot slot : slots) {
+            if (slot.ready() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Logs every connection out. Commands still in flight may be answered or fail.
+    @Override
+    public void close() {
+        closed = true;
+        timers.stop();
+        for (Slot slot : slots) {
+            Connection connection = slot.ready();
+            if (connection != null) {
+                connection.logout();
+            }
+        }
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(Request<T> request, byte opcode, long... fields) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Client closed"));
+        }
+        // The logged in connection with the fewest commands in flight, the others are (re)opened meanwhile
+        Connection best = null;
+        for (Slot slot : slots) {
+            Connection connection = slot.ready();
+            if (connection == null) {
+                slot.connection();
+            } else if (best == null || connection.pending.size() < best.pending.size()) {
+                best = connection;
+            }
+        }
+        if (best != null) {
+            return best.send(request, opcode, fields);
+        }
+        // None yet: wait for one to log in, or fail with why it could not
+        Slot slot;
+        synchronized (this) {
+            slot = slots[next];
+            next = (next + 1) % slots.length;
+        }
+        return slot.connection().thenCompose(connection -> connection.send(request, opcode, fields));
+    }
+
+    // Pings idle connections and reopens the ones that are gone, then reschedules itself
+    private void healthCheck() {
+        if (closed) {
+            return;
+        }
+        long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(healthCheckMillis);
+        for (Slot slot : slots) {
+            Connection connection = slot.ready();
+            if (connection == null) {
+                slot.connection(); // reconnect in the background
+            } else if (connection.lastReply - idleSince < 0) {
+                connection.send(new TextRequest(), CommandParser.OP_PING)
+                        .orTimeout(healthCheckMillis, TimeUnit.MILLISECONDS)
+                        .exceptionally(e -> {
+                            connection.fail(new IOException("Health check failed", e));
+                            return null;
+                        });
+            }
+        }
+        timers.newTimeout(this::healthCheck, healthCheckMillis);
+    }
+
+    // One place in the pool: its connection, or the attempt to open one
+    private final class Slot {
+        private CompletableFuture<Connection> connection;
+        private long attempts;
+        private long retryAt;
+
+        // The logged in connection, null while there is none
+        Connection ready() {
+            CompletableFuture<Connection> current;
+            synchronized (this) {
+                current = connection;
+            }
+            if (current == null || !current.isDone() || current.isCompletedExceptionally()) {
+                return null;
+            }
+            Connection c = current.join();
+            return c.closed ? null : c;
+        }
+
+        // The current attempt, a new one when the last connection failed and its backoff passed
+        synchronized CompletableFuture<Connection> connection() {
+            boolean failed = connection != null && connection.isCompletedExceptionally();
+            boolean lost = connection != null && connection.isDone() && !failed && connection.join().closed;
+            if (connection == null || lost || failed && System.nanoTime() - retryAt >= 0) {
+                connection = CompletableFuture.supplyAsync(this::open, executor);
+            }
+            return connection;
+        }
+
+        private Connection open() {
+            try {
+                Connection opened = new Connection();
+                synchronized (this) {
+                    attempts = 0;
+                }
+                return opened;
+            } catch (BusyException e) {
+                backoff(e.retryAfterMillis);
+                throw new CompletionException(e);
+            } catch (IOException | RuntimeException e) {
+                // Doubles up to five seconds, with jitter so a pool does not reconnect in step
+                long delay;
+                synchronized (this) {
+                    delay = Math.min(MAX_BACKOFF_MS, 100L << Math.min(attempts++, 6));
+                }
+                backoff(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                throw e instanceof RuntimeException r ? r : new CompletionException(e);
+            }
+        }
+
+        private synchronized void backoff(long millis) {
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    // The server answered the connection with BUSY instead of a handshake
+    static class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterMillis;
+
+        BusyException(long retryAfterMillis) {
+            super("Server is busy. Please try again in " + retryAfterMillis + " ms.");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    // One logged in session in binary framing. Callers append frames to a shared
+    // buffer under a lock; a single flush task writes whatever accumulated, so
+    // commands issued while a write is under way go out together in the next one.
+    private final class Connection {
+        private final SSLSocket socket;
+        private final OutputStream out;
+        private final CommandParser.InputReader in;
+        private final Map<Long, Request<?>> pending = new ConcurrentHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private CommandParser.ReplyBuffer filling = new CommandParser.ReplyBuffer();
+        private CommandParser.ReplyBuffer spare = new CommandParser.ReplyBuffer();
+        private boolean flushScheduled;
+        private long nextRequestId = 1;
+        private volatile boolean closed;
+        private volatile long lastReply = System.nanoTime();
+
+        Connection() throws IOException {
+            Client.BusyAwareSocket plain = new Client.BusyAwareSocket();
+            plain.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            plain.setTcpNoDelay(true);
+            socket = (SSLSocket) socketFactory.createSocket(plain, host, port, true);
+            try {
+                try {
+                    socket.startHandshake();
+                } catch (IOException e) {
+                    long retryAfter = plain.retryAfter();
+                    throw retryAfter >= 0 ? new BusyException(retryAfter) : e;
+                }
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new CommandParser.InputReader(socket.getInputStream());
+                login();
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+            Thread.ofVirtual().name("async-client-reader").start(this::read);
+        }
+
+        private void login() throws IOException {
+            CommandParser.ReplyBuffer register = new CommandParser.ReplyBuffer().put(CommandParser.BINARY).put((byte) '\n')
+                    .beginFrame(CommandParser.OP_REGISTER, nextRequestId++)
+                    .bytes(id.getBytes(StandardCharsets.UTF_8))
+                    .bytes(password.getBytes(StandardCharsets.UTF_8))
+                    .endFrame();
+            out.write(register.array(), 0, register.length());
+            out.flush();
+            if (!in.readLine() || !text(in.buffer(), in.messageStart, in.messageLength).startsWith("ACK")) {
+                throw new IOException("Binary framing refused");
+            }
+            if (!in.readFrame()) {
+                throw new IOException("Connection closed during login");
+            }
+            CommandParser.Cursor reply = new CommandParser.Cursor().wrap(in.buffer(), in.messageStart, in.messageLength);
+            byte opcode = reply.opcode();
+            reply.varint();
+            String message = reply.string();
+            // "Use one of your open sessions." comes as OK but is a refusal as well
+            if (opcode != CommandParser.OP_OK || message == null || !message.startsWith("ACK")) {
+                throw new ServerException(message);
+            }
+        }
+
+        <T> CompletableFuture<T> send(Request<T> request, byte opcode, long... fields) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return CompletableFuture.failedFuture(new IOException("Connection closed"));
+                }
+                if (pending.size() >= maxInFlight) {
+                    return CompletableFuture.failedFuture(new RejectedExecutionException("Too many commands in flight"));
+                }
+                long requestId = nextRequestId++;
+                pending.put(requestId, request);
+                filling.beginFrame(opcode, requestId);
+                for (long field : fields) {
+                    filling.varint(field);
+                }
+                filling.endFrame();
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    executor.execute(this::flush);
+                }
+            } catch (RejectedExecutionException e) {
+                // The client was closed meanwhile
+                fail(new IOException("Client closed"));
+            } finally {
+                lock.unlock();
+            }
+            return request.future;
+        }
+
+        private void flush() {
+            try {
+                while (true) {
+                    CommandParser.ReplyBuffer batch;
+                    lock.lock();
+                    try {
+                        if (filling.length() == 0) {
+                            flushScheduled = false;
+                            return;
+                        }
+                        batch = filling;
+                        filling = spare;
+                        spare = batch;
+                    } finally {
+                        lock.unlock();
+                    }
+                    out.write(batch.array(), 0, batch.length());
+                    out.flush();
+                    batch.reset();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        // Hands each reply frame to the command with its request id
+        private void read() {
+            CommandParser.Cursor reply = new CommandParser.Cursor();
+            try {
+                while (in.readFrame()) {
+                    lastReply = System.nanoTime();
+                    reply.wrap(in.buffer(), in.messageStart, in.messageLength);
+                    byte opcode = reply.opcode();
+                    long requestId = reply.varint();
+                    Request<?> request = pending.get(requestId);
+                    if (request == null) {
+                        // A push like the session timeout notice, the connection ends after it
+                        continue;
+                    }
+                    boolean done;
+                    if (opcode == CommandParser.OP_ERROR) {
+                        request.future.completeExceptionally(new ServerException(reply.string()));
+                        done = true;
+                    } else {
+                        done = request.accept(opcode, reply);
+                    }
+                    if (done) {
+                        pending.remove(requestId);
+                    }
+                }
+                fail(new IOException("Connection closed by the server"));
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(new IOException(e));
+            }
+        }
+
+        // Closes the connection and fails what is still in flight; the slot opens a new one when needed
+        void fail(IOException cause) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closed either way
+            }
+            for (Request<?> request : pending.values()) {
+                request.future.completeExceptionally(cause);
+            }
+            pending.clear();
+        }
+
+        void logout() {
+            send(new TextRequest(), CommandParser.OP_LOGOUT).whenComplete((reply, error) -> fail(new IOException("Logged out")));
+        }
+    }
+
+    private static String text(byte[] buf, int off, int len) {
+        return new String(buf, off, len, StandardCharsets.UTF_8);
+    }
+
+    // A command waiting for its reply. accept gets each frame with its request id
+    // and returns true once the command is answered completely.
+    private abstract static class Request<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        abstract boolean accept(byte opcode, CommandParser.Cursor reply);
+    }
+
+    private static final class CounterRequest extends Request<Long> {
+        @Override
+        boolean accept(byte opcode, CommandParser.Cursor reply) {
+            if (opcode == CommandParser.OP_COUNTER) {
+                long zigzag = reply.varint();
+                future.complete((zigzag >>> 1) ^ -(zigzag & 1));
+            } else {
+                future.completeExceptionally(new ServerException(reply.string()));
+            }
+            return true;
+        }
+    }
+
+    private static class TextRequest extends Request<String> {
+        @Override
+        boolean accept(byte opcode, CommandParser.Cursor reply) {
+            future.complete(reply.string());
+            return true;
+        }
+    }
+
+    // "STATS name=value name=value ..."
+    private static final class StatsRequest extends Request<Map<String, Long>> {
+        @Override
+        boolean accept(byte opcode, CommandParser.Cursor reply) {
+            Map<String, Long> stats = new LinkedHashMap<>();
+            for (String pair : reply.string().split(" ")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    try {
+                        stats.put(pair.substring(0, equals), Long.parseLong(pair.substring(equals + 1)));
+                    } catch (NumberFormatException e) {
+                        // Not a metric
+                    }
+                }
+            }
+            future.complete(stats);
+            return true;
+        }
+    }
+
+    // "HISTORY <entry>" per entry, then "HISTORY END <count>[ truncated]"
+    private static final class HistoryRequest extends Request<History> {
+        private final List<String> entries = new ArrayList<>();
+
+        @Override
+        boolean accept(byte opcode, CommandParser.Cursor reply) {
+            String line = reply.string();
+            if (line != null && line.startsWith("HISTORY END")) {
+                future.complete(new History(entries, line.endsWith("truncated")));
+                return true;
+            }
+            if (line != null && line.startsWith("HISTORY ")) {
+                entries.add(line.substring("HISTORY ".length()));
+            }
+            return false;
+        }
+    }
+}
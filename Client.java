@@ -1,231 +1,455 @@
-import java.net.*;
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
-import java.security.KeyStore;
-import java.security.SecureRandom;
-import javax.net.ssl.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-public class Client {
-    private Socket clientSocket;
-    private PrintWriter out;
-    private BufferedReader in;
-
-
-    public void startConnection(String ip, int port, String truststore_password) {
-        try {       
-            // Load the client truststore
-            KeyStore trustStore = KeyStore.getInstance("JKS");
-            try (FileInputStream trustStoreStream = new FileInputStream("client.truststore")) {
-                char[] trustStorePassword = truststore_password.toCharArray();
-                trustStore.load(trustStoreStream, trustStorePassword);
-            }
-
-            // Create trust manager
-            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
-            trustManagerFactory.init(trustStore);
-
-            // Initialize SSL context
-            SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
-            sslContext.init(null, trustManagerFactory.getTrustManagers(), new SecureRandom());
-
-            // Create SSL client socket   
-            SSLSocketFactory socketFactory = sslContext.getSocketFactory();
-            SSLSocket clientSocket = (SSLSocket) socketFactory.createSocket(ip, port);
-
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            
-        } catch (UnknownHostException e) {
-            System.err.println("Unable to connect to the server."); //Please check IP address
-        } catch (IOException e) {
-            System.err.println("Unable to connect to the server");
-        } catch (Exception e) {
-            System.err.println("Unable to connect to the server");
-            stopConnection(); // Close resources if setup fails
-        }
-    }
-
-    public String sendMessage(String msg) {
-        String resp = null;
-        try {
-            out.println(msg); // Send message to the server
-            resp = in.readLine(); // Read response from the server
-        } catch (IOException e) {
-            System.err.println("Unable to connect to the server");;
-        }
-        return resp;
-    }
-
-    public void stopConnection() {
-            try {
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (clientSocket != null) clientSocket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing client connection");
-            } finally {
-                System.clearProperty("CLIENT_TRUSTORE_PASSWORD");
-            }
-    }
-
-    public void sendIncrease(int amount) {
-        System.out.println("Sending INCREASE command with amount: " + amount);
-        String response = sendMessage("INCREASE " + amount);
-        System.out.println(response);
-    }
-
-    public void sendDecrease(int amount) {
-        System.out.println("Sending DECREASE command with amount: " + amount);
-        String response = sendMessage("DECREASE " + amount);
-        System.out.println(response);
-    }
-
-    public void sendLogout() {
-        try{
-            System.out.println("Sending LOGOUT command.");
-            String response = sendMessage("LOGOUT");
-            System.out.println(response);
-        } catch (Exception e) {
-            System.err.println("Unable to connect to logout");
-        }        
-    }
-    
-    private static int getValidatedInput(Scanner inputScanner, String action) {
-        int amount = -1;
-        boolean valid = false;
-    
-        while (!valid) {
-            System.out.print("Enter amount to " + action + ": ");
-            if (inputScanner.hasNextInt()) {
-                amount = inputScanner.nextInt();
-                if (amount > 0 && amount <= Integer.MAX_VALUE) {
-                    valid = true; 
-                } else {
-                    System.out.println("ERROR: Invalid input.");
-                }
-            } else { //this happen if input in not an interger
-                System.out.println("ERROR: Invalid input.");
-                inputScanner.next(); // Clear invalid input
-            }
-        }
-        inputScanner.nextLine(); 
-        return amount;
-    }
-    
-    private static String getValidatedClientId(Scanner scanner) {
-        while (true) {
-            System.out.print("Enter client ID: ");
-            String clientId = scanner.next();
-            // IDs must be 3-20 characters, alphanumeric, '_', or '-'
-            if (clientId != null && clientId.matches("^[a-zA-Z0-9_-]{3,20}$")) {
-                return clientId;
-            } else {
-                System.out.println("ERROR: Invalid client ID");
-            }
-        }
-    }
-    
-    private static String getValidatedPassword() {
-        Console console = System.console();
-        while (true) {
-            System.out.print("Enter password: ");
-            char[] passwordArray = console.readPassword();
-            String password = new String(passwordArray);
-            //Passwords must be 8-30 characters, at least one special character, at least two digits
-            if (password != null && password.matches("^(?=.*[!@#$%^&*()_+\\-=\\[\\]{};':\"\\\\|,.<>/?])(?=.*\\d.*\\d).+$")) {
-                return password;
-            } else {
-                System.out.println("ERROR: Invalid password");
-            }
-        }
-    }
-
-    private static String hashPassword(String password) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] encodedHash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
-            StringBuilder hexString = new StringBuilder(2 * encodedHash.length);
-            for (byte b : encodedHash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Error hashing password", e);
-        }
-    }
-
-    public static void main(String[] args) {
-        Scanner inputScanner = new Scanner(System.in);
-
-        // Get ip from user
-        String ip = null;
-        try {
-            InetAddress localIpAddress = InetAddress.getLocalHost();
-            ip = localIpAddress.getHostAddress();
-        } catch (Exception e) {
-            System.err.println("Error IP");
-        }
-
-        // Get port from user
-        System.out.print("Enter port number: ");
-        int port = inputScanner.nextInt();
-
-        // Get client ID an dpassword from user
-        String clientId = getValidatedClientId(inputScanner);
-        String password = getValidatedPassword();
-        password = hashPassword(password);
-
-        // Create client with user-provided IP and port
-        Client client = new Client();
-
-        System.out.print("Enter your truststore password: ");
-        Console console = System.console();
-        char[] truststore_passwordArray = console.readPassword();
-        String truststore_password = new String(truststore_passwordArray);
-
-        client.startConnection(ip, port, truststore_password);
-
-        // Register the client
-        String response = client.sendMessage("REGISTER " + clientId + " " + password);
-
-        // Handle general server errors
-        if (!response.startsWith("ACK")) {
-            System.out.println("Server error during registration: " + response);
-            inputScanner.close();
-            client.stopConnection();
-            System.exit(1);
-        } else {
-            System.out.println(response);
-        }
-
-        String command;
-        do {
-            System.out.println("Enter command (INCREASE, DECREASE, LOGOUT): ");
-
-            command = inputScanner.hasNextLine() ? inputScanner.next().toUpperCase() : "LOGOUT";
-
-            switch (command) {
-                case "INCREASE" -> {
-                    int increaseAmount = getValidatedInput(inputScanner, "increase");
-                    client.sendIncrease(increaseAmount);
-                }
-                case "DECREASE" -> {
-                    int decreaseAmount = getValidatedInput(inputScanner, "decrease");
-                    client.sendDecrease(decreaseAmount);
-                }
-                case "LOGOUT" -> client.sendLogout();
-                default -> System.out.println("Unknown command. Try again.");
-            }
-        } while (!command.equals("LOGOUT"));
-
-        inputScanner.close();
-        client.stopConnection();
-    }
+import java.net.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import javax.net.ssl.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class Client {
+    private Socket clientSocket;
+    private PrintWriter out;
+    private BufferedReader in;
+    // Request ids used to match pipelined replies
+    private long nextRequestId = 1;
+
+
+    // One SSLContext per truststore for the whole process. Reusing it keeps the
+    // client session cache, so reconnects to the same server resume the TLS session.
+    private static final Map<String, SSLContext> sslContexts = new ConcurrentHashMap<>();
+    private boolean sessionResumed;
+    // Set when the server turned the connection away before the handshake, -1 otherwise
+    private long retryAfterMillis = -1;
+
+    static SSLContext sslContext(String truststore, String truststore_password) throws Exception {
+        SSLContext cached = sslContexts.get(truststore);
+        if (cached != null) {
+            return cached;
+        }
+        // Load the client truststore
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (FileInputStream trustStoreStream = new FileInputStream(truststore)) {
+            char[] trustStorePassword = truststore_password.toCharArray();
+            trustStore.load(trustStoreStream, trustStorePassword);
+        }
+
+        // Create trust manager
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
+        trustManagerFactory.init(trustStore);
+
+        // Initialize SSL context
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), new SecureRandom());
+        SSLContext existing = sslContexts.putIfAbsent(truststore, sslContext);
+        return existing != null ? existing : sslContext;
+    }
+
+    public void startConnection(String ip, int port, String truststore_password) {
+        startConnection(ip, port, "client.truststore", truststore_password);
+    }
+
+    public void startConnection(String ip, int port, String truststore, String truststore_password) {
+        try {       
+            // Create SSL client socket   
+            SSLSocketFactory socketFactory = sslContext(truststore, truststore_password).getSocketFactory();
+            BusyAwareSocket plainSocket = new BusyAwareSocket();
+            plainSocket.connect(new InetSocketAddress(ip, port));
+            SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(plainSocket, ip, port, true);
+            clientSocket = sslSocket;
+            retryAfterMillis = -1;
+
+            // A resumed session keeps the creation time of the session it was resumed from
+            long handshakeStart = System.currentTimeMillis();
+            try {
+                sslSocket.startHandshake();
+            } catch (IOException e) {
+                // An overloaded server answers in plain text instead of TLS
+                retryAfterMillis = plainSocket.retryAfter();
+                if (retryAfterMillis < 0) {
+                    throw e;
+                }
+                System.err.println("Server is busy. Please try again in " + retryAfterMillis + " ms.");
+                stopConnection();
+                return;
+            }
+            sessionResumed = sslSocket.getSession().getCreationTime() < handshakeStart;
+
+            out = new PrintWriter(clientSocket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            
+        } catch (UnknownHostException e) {
+            System.err.println("Unable to connect to the server."); //Please check IP address
+        } catch (IOException e) {
+            System.err.println("Unable to connect to the server");
+        } catch (Exception e) {
+            System.err.println("Unable to connect to the server");
+            stopConnection(); // Close resources if setup fails
+        }
+    }
+
+    // Milliseconds the server asked to wait when it refused the last startConnection, -1 if it did not
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    // Remembers the first bytes the TLS layer reads, so a "BUSY <ms>" line sent by the
+    // server in place of its handshake can be recognised once the handshake fails
+    static class BusyAwareSocket extends Socket {
+        private final byte[] head = new byte[32];
+        private int headLength;
+        private InputStream input;
+        private static final long UNREAD = -2;
+        private long retryAfter = UNREAD;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (input == null) {
+                input = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0 && headLength < head.length) {
+                            head[headLength++] = (byte) b;
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        for (int i = 0; i < n && headLength < head.length; i++) {
+                            head[headLength++] = b[off + i];
+                        }
+                        return n;
+                    }
+
+                    // The TLS layer skips what is left of a record it cannot parse
+                    @Override
+                    public long skip(long n) throws IOException {
+                        return Math.max(0, read(new byte[(int) Math.min(n, 512)]));
+                    }
+                };
+            }
+            return input;
+        }
+
+        // The retry time of a BUSY reply, -1 if the server sent something else
+        synchronized long retryAfter() {
+            if (retryAfter == UNREAD) {
+                retryAfter = readRetryAfter();
+            }
+            return retryAfter;
+        }
+
+        private long readRetryAfter() {
+            if (headLength < 5 || !new String(head, 0, 5, StandardCharsets.US_ASCII).equals("BUSY ")) {
+                return -1;
+            }
+            try {
+                // The rest of the line, part of which the TLS layer may have read already
+                StringBuilder digits = new StringBuilder();
+                int i = 5;
+                while (i < headLength && head[i] != '\n') {
+                    digits.append((char) head[i++]);
+                }
+                if (i == headLength) {
+                    setSoTimeout(1000);
+                    int b;
+                    while ((b = input.read()) >= 0 && b != '\n') {
+                        digits.append((char) b);
+                    }
+                }
+                return Long.parseLong(digits.toString());
+            } catch (IOException | NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // The failed handshake closes the socket before startConnection gets to look at it
+        @Override
+        public synchronized void close() throws IOException {
+            if (headLength >= 5) {
+                retryAfter();
+            }
+            super.close();
+        }
+    }
+
+    // Whether the last startConnection resumed an earlier TLS session instead of a full handshake
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    public String sendMessage(String msg) {
+        String resp = null;
+        try {
+            out.println(msg); // Send message to the server
+            resp = in.readLine(); // Read response from the server
+        } catch (IOException e) {
+            System.err.println("Unable to connect to the server");;
+        }
+        return resp;
+    }
+
+    // Sends all commands without waiting for each reply, keeping up to window of them
+    // in flight. The server answers in order with the request id echoed, so replies
+    // are returned in the order of the commands (null when the connection drops).
+    public List<String> sendPipelined(List<String> commands, int window) {
+        String[] replies = new String[commands.size()];
+        long firstId = nextRequestId;
+        nextRequestId += commands.size();
+        int sent = 0;
+        int received = 0;
+        try {
+            while (received < commands.size()) {
+                while (sent < commands.size() && sent - received < window) {
+                    out.write("#" + (firstId + sent) + " " + commands.get(sent) + "\n");
+                    sent++;
+                }
+                out.flush();
+
+                do {
+                    String line = in.readLine();
+                    if (line == null) {
+                        return toList(replies);
+                    }
+                    int space = line.indexOf(' ');
+                    if (!line.startsWith("#") || space < 0) {
+                        System.out.println(line); // Not a reply, e.g. the inactivity notice
+                        continue;
+                    }
+                    try {
+                        long id = Long.parseLong(line.substring(1, space));
+                        if (id >= firstId && id < firstId + commands.size()) {
+                            replies[(int) (id - firstId)] = line.substring(space + 1);
+                            received++;
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.println("Unexpected reply: " + line);
+                    }
+                } while (received < sent && in.ready());
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to connect to the server");
+        }
+        return toList(replies);
+    }
+
+    // Sends one command tagged with the given request id without waiting for its reply,
+    // for callers that read the replies themselves with readReply. False when the
+    // connection is gone.
+    public boolean sendTagged(long requestId, String command) {
+        out.write("#" + requestId + " " + command + "\n");
+        out.flush();
+        return !out.checkError();
+    }
+
+    // Next line from the server, null at end of stream
+    public String readReply() throws IOException {
+        return in.readLine();
+    }
+
+    public boolean isConnected() {
+        return out != null && clientSocket != null && !clientSocket.isClosed();
+    }
+
+    // Pipelines one INCREASE or DECREASE per delta (positive or negative) and returns the replies
+    public List<String> sendDeltas(int[] deltas, int window) {
+        List<String> commands = new ArrayList<>(deltas.length);
+        for (int delta : deltas) {
+            commands.add(delta >= 0 ? "INCREASE " + delta : "DECREASE " + (-(long) delta));
+        }
+        return sendPipelined(commands, window);
+    }
+
+    private static List<String> toList(String[] replies) {
+        List<String> list = new ArrayList<>(replies.length);
+        for (String reply : replies) {
+            list.add(reply);
+        }
+        return list;
+    }
+
+    public void stopConnection() {
+            try {
+                if (in != null) in.close();
+                if (out != null) out.close();
+                if (clientSocket != null) clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client connection");
+            } finally {
+                System.clearProperty("CLIENT_TRUSTORE_PASSWORD");
+            }
+    }
+
+    public void sendIncrease(int amount) {
+        System.out.println("Sending INCREASE command with amount: " + amount);
+        String response = sendMessage("INCREASE " + amount);
+        System.out.println(response);
+    }
+
+    public void sendDecrease(int amount) {
+        System.out.println("Sending DECREASE command with amount: " + amount);
+        String response = sendMessage("DECREASE " + amount);
+        System.out.println(response);
+    }
+
+    public void sendLogout() {
+        try{
+            System.out.println("Sending LOGOUT command.");
+            String response = sendMessage("LOGOUT");
+            System.out.println(response);
+        } catch (Exception e) {
+            System.err.println("Unable to connect to logout");
+        }        
+    }
+    
+    private static int getValidatedInput(Scanner inputScanner, String action) {
+        int amount = -1;
+        boolean valid = false;
+    
+        while (!valid) {
+            System.out.print("Enter amount to " + action + ": ");
+            if (inputScanner.hasNextInt()) {
+                amount = inputScanner.nextInt();
+                if (amount > 0 && amount <= Integer.MAX_VALUE) {
+                    valid = true; 
+                } else {
+                    System.out.println("ERROR: Invalid input.");
+                }
+            } else { //this happen if input in not an interger
+                System.out.println("ERROR: Invalid input.");
+                inputScanner.next(); // Clear invalid input
+            }
+        }
+        inputScanner.nextLine(); 
+        return amount;
+    }
+    
+    private static String getValidatedClientId(Scanner scanner) {
+        while (true) {
+            System.out.print("Enter client ID: ");
+            String clientId = scanner.next();
+            // IDs must be 3-20 characters, alphanumeric, '_', or '-'
+            if (clientId != null && clientId.matches("^[a-zA-Z0-9_-]{3,20}$")) {
+                return clientId;
+            } else {
+                System.out.println("ERROR: Invalid client ID");
+            }
+        }
+    }
+    
+    private static String getValidatedPassword() {
+        Console console = System.console();
+        while (true) {
+            System.out.print("Enter password: ");
+            char[] passwordArray = console.readPassword();
+            String password = new String(passwordArray);
+            //Passwords must be 8-30 characters, at least one special character, at least two digits
+            if (password != null && password.matches("^(?=.*[!@#$%^&*()_+\\-=\\[\\]{};':\"\\\\|,.<>/?])(?=.*\\d.*\\d).+$")) {
+                return password;
+            } else {
+                System.out.println("ERROR: Invalid password");
+            }
+        }
+    }
+
+    private static String hashPassword(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] encodedHash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hexString = new StringBuilder(2 * encodedHash.length);
+            for (byte b : encodedHash) {
+                String hex = Integer.toHexString(0xff & b);
+                if (hex.length() == 1) {
+                    hexString.append('0');
+                }
+                hexString.append(hex);
+            }
+            return hexString.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error hashing password", e);
+        }
+    }
+
+    public static void main(String[] args) {
+        Scanner inputScanner = new Scanner(System.in);
+
+        // Get ip from user
+        String ip = null;
+        try {
+            InetAddress localIpAddress = InetAddress.getLocalHost();
+            ip = localIpAddress.getHostAddress();
+        } catch (Exception e) {
+            System.err.println("Error IP");
+        }
+
+        // Get port from user
+        System.out.print("Enter port number: ");
+        int port = inputScanner.nextInt();
+
+        // Get client ID an dpassword from user
+        String clientId = getValidatedClientId(inputScanner);
+        String password = getValidatedPassword();
+        password = hashPassword(password);
+
+        // Create client with user-provided IP and port
+        Client client = new Client();
+
+        System.out.print("Enter your truststore password: ");
+        Console console = System.console();
+        char[] truststore_passwordArray = console.readPassword();
+        String truststore_password = new String(truststore_passwordArray);
+
+        client.startConnection(ip, port, truststore_password);
+        if (!client.isConnected()) {
+            inputScanner.close();
+            System.exit(1);
+        }
+        if (client.isSessionResumed()) {
+            System.out.println("TLS session resumed.");
+        }
+
+        // Register the client
+        String response = client.sendMessage("REGISTER " + clientId + " " + password);
+
+        // Handle general server errors
+        if (!response.startsWith("ACK")) {
+            System.out.println("Server error during registration: " + response);
+            inputScanner.close();
+            client.stopConnection();
+            System.exit(1);
+        } else {
+            System.out.println(response);
+        }
+
+        String command;
+        do {
+            System.out.println("Enter command (INCREASE, DECREASE, LOGOUT): ");
+
+            command = inputScanner.hasNextLine() ? inputScanner.next().toUpperCase() : "LOGOUT";
+
+            switch (command) {
+                case "INCREASE" -> {
+                    int increaseAmount = getValidatedInput(inputScanner, "increase");
+                    client.sendIncrease(increaseAmount);
+                }
+                case "DECREASE" -> {
+                    int decreaseAmount = getValidatedInput(inputScanner, "decrease");
+                    client.sendDecrease(decreaseAmount);
+                }
+                case "LOGOUT" -> client.sendLogout();
+                default -> System.out.println("Unknown command. Try again.");
+            }
+        } while (!command.equals("LOGOUT"));
+
+        inputScanner.close();
+        client.stopConnection();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// The registered ids: password hash, counter and number of open sessions of each.
+// The callbacks run while the id stays registered, removal waits for them, so what they
+// do (journal records) cannot fall before the id's registration or after its removal.
+// Two implementations, picked with
+// SERVER_REGISTRY: "heap", an object per id in a ConcurrentHashMap, and
+// "offheap", see OffHeapClientRegistry.
+public interface ClientRegistry {
+    int ABSENT = 0;
+    int ACQUIRED = 1;
+    int FULL = 2;
+
+    // A copy of one entry
+    record Registered(String id, String password, long counter, int instances) {
+    }
+
+    // Sees a counter change of applyDelta before the id can be removed
+    interface Applied {
+        void applied(long previous, long counter);
+    }
+
+    // The password hash of id, null when it is not registered
+    String password(String id);
+
+    // Adds id unless it exists, false if it did
+    boolean insert(String id, String password, long counter, int instances, Runnable then);
+
+    // Takes a session slot of id if it is still registered with this password hash:
+    // ABSENT when it is not, FULL when max sessions are open, else ACQUIRED after running then
+    int acquire(String id, String password, int max, Runnable then);
+
+    // Gives a session slot back and returns how many are still open. The last one
+    // removes the entry, after running removed.
+    int release(String id, Runnable removed);
+
+    // Removes id if it has no session open, null otherwise
+    Registered removeIfIdle(String id);
+
+    // Atomically adds delta to the counter of a registered id and runs then with the
+    // previous and the new value, counters.add(previous, delta). false when id is not registered.
+    boolean applyDelta(String id, long delta, Applied then);
+
+    long counter(String id);
+
+    int size();
+
+    // Visits a copy of every entry, concurrent changes may or may not be seen
+    void forEach(Consumer<Registered> action);
+
+    static ClientRegistry fromProperties(CounterStore counters) {
+        String kind = System.getProperty("SERVER_REGISTRY", "heap").trim();
+        if (kind.equalsIgnoreCase("offheap")) {
+            return new OffHeapClientRegistry(counters, Server.intProperty("SERVER_REGISTRY_CAPACITY", 1 << 14));
+        }
+        if (!kind.equalsIgnoreCase("heap")) {
+            System.err.println("Invalid value for SERVER_REGISTRY, using heap");
+        }
+        return new OnHeap(counters);
+    }
+
+    // One object per id. Registration, sessions and removal of an id run under the map's
+    // lock for its key, counter updates only compare-and-set and are waited for by removal.
+    class OnHeap implements ClientRegistry {
+        private static class Entry extends CounterStore.Entry {
+            final String password;
+
+            Entry(String password, long counter, int instances) {
+                super(counter, instances);
+                this.password = password;
+            }
+        }
+
+        private final Map<String, Entry> clients = new ConcurrentHashMap<>();
+        private final CounterStore counters;
+
+        public OnHeap(CounterStore counters) {
+            this.counters = counters;
+        }
+
+        @Override
+        public String password(String id) {
+            Entry entry = clients.get(id);
+            return entry == null ? null : entry.password;
+        }
+
+        @Override
+        public boolean insert(String id, String password, long counter, int instances, Runnable then) {
+            boolean[] inserted = new boolean[1];
+            clients.computeIfAbsent(id, key -> {
+                if (then != null) {
+                    then.run();
+                }
+                inserted[0] = true;
+                return new Entry(password, counter, instances);
+            });
+            return inserted[0];
+        }
+
+        @Override
+        public int acquire(String id, String password, int max, Runnable then) {
+            int[] outcome = {ABSENT};
+            clients.computeIfPresent(id, (key, entry) -> {
+                if (!entry.password.equals(password)) {
+                    return entry;
+                }
+                if (counters.tryAcquireInstance(entry, max)) {
+                    then.run();
+                    outcome[0] = ACQUIRED;
+                } else {
+                    outcome[0] = FULL;
+                }
+                return entry;
+            });
+            return outcome[0];
+        }
+
+        @Override
+        public int release(String id, Runnable removed) {
+            int[] remaining = new int[1];
+            clients.computeIfPresent(id, (key, entry) -> {
+                remaining[0] = counters.releaseInstance(entry);
+                if (remaining[0] <= 0) {
+                    counters.retire(entry);
+                    removed.run();
+                    return null;
+                }
+                return entry;
+            });
+            return remaining[0];
+        }
+
+        @Override
+        public Registered removeIfIdle(String id) {
+            Registered[] removed = new Registered[1];
+            clients.computeIfPresent(id, (key, entry) -> {
+                if (entry.instances() > 0) {
+                    return entry;
+                }
+                counters.retire(entry);
+                removed[0] = new Registered(key, entry.password, entry.counter(), 0);
+                return null;
+            });
+            return removed[0];
+        }
+
+        @Override
+        public boolean applyDelta(String id, long delta, Applied then) {
+            Entry entry = clients.get(id);
+            if (entry == null || !counters.beginUpdate(entry)) {
+                return false;
+            }
+            try {
+                long previous = counters.getAndApplyDelta(entry, delta);
+                then.applied(previous, counters.add(previous, delta));
+            } finally {
+                counters.endUpdate(entry);
+            }
+            return true;
+        }
+
+        @Override
+        public long counter(String id) {
+            Entry entry = clients.get(id);
+            return entry == null ? 0 : entry.counter();
+        }
+
+        @Override
+        public int size() {
+            return clients.size();
+        }
+
+        @Override
+        public void forEach(Consumer<Registered> action) {
+            clients.forEach((id, entry) -> action.accept(new Registered(id, entry.password, entry.counter(), entry.instances())));
+        }
+    }
+}
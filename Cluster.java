@@ -0,0 +1,451 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+// Cluster mode (SERVER_CLUSTER_NODES=a=host:port,b=host:port,...): every node is a
+// separate Server that owns the client ids a consistent hash ring maps to it. A
+// REGISTER for an id owned elsewhere is forwarded: the node opens a TLS connection
+// to the owner and relays the session's bytes both ways, so clients can connect to
+// any node with the unchanged protocol. Nodes talk to each other over the same
+// port: "PEER <SERVER_CLUSTER_SECRET>" opens a connection for the commands below,
+// "FORWARD <SERVER_CLUSTER_SECRET>" one that relays a client session.
+//
+// REBALANCE moves ids after the membership changed: ids without sessions are copied
+// to their new owner (IMPORT), ids with live sessions stay where they are until
+// their last session ends, and meanwhile their new owner forwards to the old one (HANDOFF).
+public class Cluster {
+    record Node(String id, String host, int port) {
+        @Override
+        public String toString() {
+            return id + "=" + host + ":" + port;
+        }
+    }
+
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    // Commands a forwarded session may have queued for the owner before it is dropped
+    private static final int FORWARD_QUEUE = 1024;
+
+    private final String selfId;
+    private final byte[] secret;
+    private final int virtualNodes;
+    private final SSLSocketFactory socketFactory;
+    private volatile List<Node> nodes;
+    // Hash of each virtual node to its node
+    private volatile NavigableMap<Long, Node> ring;
+    // Ids this node owns whose sessions still live on the node that held them before a rebalance
+    private final Map<String, Node> holders = new ConcurrentHashMap<>();
+    // Ids removed here for their new owner whose IMPORT has not been answered yet
+    private final Set<String> moving = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicInteger forwarding = new AtomicInteger();
+
+    Cluster(String selfId, List<Node> nodes, String secret, int virtualNodes, SSLSocketFactory socketFactory) {
+        this.selfId = selfId;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.virtualNodes = Math.max(1, virtualNodes);
+        this.socketFactory = socketFactory;
+        setNodes(nodes);
+        if (self() == null) {
+            throw new IllegalArgumentException("SERVER_NODE_ID " + selfId + " is not in SERVER_CLUSTER_NODES");
+        }
+    }
+
+    // null unless SERVER_CLUSTER_NODES is set
+    static Cluster fromProperties() throws Exception {
+        String members = System.getProperty("SERVER_CLUSTER_NODES");
+        if (members == null || members.isBlank()) {
+            return null;
+        }
+        String secret = System.getProperty("SERVER_CLUSTER_SECRET");
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("SERVER_CLUSTER_SECRET is required in cluster mode");
+        }
+        // Peers are verified like any client verifies the server
+        SSLSocketFactory socketFactory = Client.sslContext(System.getProperty("SERVER_CLUSTER_TRUSTSTORE", "client.truststore"),
+                System.getProperty("SERVER_TRUSTSTORE_PASSWORD")).getSocketFactory();
+        return new Cluster(System.getProperty("SERVER_NODE_ID", ""), parse(members), secret,
+                Server.intProperty("SERVER_CLUSTER_VNODES", 128), socketFactory);
+    }
+
+    // "a=host:port,b=host:port"
+    static List<Node> parse(String members) {
+        List<Node> parsed = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        for (String member : members.trim().split("\\s*,\\s*")) {
+            int equals = member.indexOf('=');
+            int colon = member.lastIndexOf(':');
+            if (equals <= 0 || colon < equals + 2) {
+                throw new IllegalArgumentException("Invalid cluster node: " + member);
+            }
+            String id = member.substring(0, equals);
+            if (!ids.add(id)) {
+                throw new IllegalArgumentException("Duplicate cluster node: " + id);
+            }
+            try {
+                parsed.add(new Node(id, member.substring(equals + 1, colon), Integer.parseInt(member.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cluster node: " + member);
+            }
+        }
+        return List.copyOf(parsed);
+    }
+
+    static String format(List<Node> nodes) {
+        StringBuilder members = new StringBuilder();
+        for (Node node : nodes) {
+            members.append(members.length() > 0 ? "," : "").append(node);
+        }
+        return members.toString();
+    }
+
+    // Replaces the membership, returns the previous one
+    synchronized List<Node> setNodes(List<Node> members) {
+        NavigableMap<Long, Node> newRing = new TreeMap<>();
+        for (Node node : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                newRing.put(hash(node.id() + "#" + i), node);
+            }
+        }
+        List<Node> previous = nodes;
+        nodes = members;
+        ring = newRing;
+        return previous;
+    }
+
+    // Still valid after a rebalance removed this node from the membership
+    String selfId() {
+        return selfId;
+    }
+
+    Node self() {
+        for (Node node : nodes) {
+            if (node.id().equals(selfId)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    boolean isSelf(Node node) {
+        return node.id().equals(selfId);
+    }
+
+    // The node the ring assigns the id to
+    Node owner(String id) {
+        NavigableMap<Long, Node> current = ring;
+        Map.Entry<Long, Node> entry = current.ceilingEntry(hash(id));
+        return (entry != null ? entry : current.firstEntry()).getValue();
+    }
+
+    // Where sessions of an id not held here go: the node still holding it after a
+    // rebalance, else its owner. null when this node should serve it.
+    Node route(String id) {
+        Node holder = holders.get(id);
+        if (holder != null) {
+            return holder;
+        }
+        Node owner = owner(id);
+        return isSelf(owner) ? null : owner;
+    }
+
+    Node holder(String id) {
+        return holders.get(id);
+    }
+
+    void handoff(String id, Node holder) {
+        holders.put(id, holder);
+    }
+
+    void release(String id) {
+        holders.remove(id);
+    }
+
+    // Sessions of a moving id are refused until the IMPORT is answered: forwarded, they
+    // could register it at the new owner before the IMPORT arrives
+    void beginMove(String id) {
+        moving.add(id);
+    }
+
+    void endMove(String id) {
+        moving.remove(id);
+    }
+
+    boolean moving(String id) {
+        return moving.contains(id);
+    }
+
+    // Ids handed to this node that now belong to another one, removed from the map
+    Map<String, Node> takeForeignHolders() {
+        Map<String, Node> foreign = new LinkedHashMap<>();
+        holders.forEach((id, holder) -> {
+            if (!isSelf(owner(id)) && holders.remove(id, holder)) {
+                foreign.put(id, holder);
+            }
+        });
+        return foreign;
+    }
+
+    Node node(String id) {
+        for (Node node : nodes) {
+            if (node.id().equals(id)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    boolean authenticate(String candidate) {
+        return MessageDigest.isEqual(secret, candidate.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Addresses of the other nodes, their forwarded sessions all come from there
+    Set<InetAddress> peerAddresses() {
+        Set<InetAddress> addresses = new HashSet<>();
+        for (Node node : nodes) {
+            try {
+                addresses.addAll(List.of(InetAddress.getAllByName(node.host())));
+            } catch (UnknownHostException e) {
+                System.err.println("Unknown cluster node host: " + node.host());
+            }
+        }
+        return addresses;
+    }
+
+    // Runs peer requests and rebalancing off the sessions
+    ExecutorService executor() {
+        return executor;
+    }
+
+    // Sessions currently relayed to another node
+    public int forwarding() {
+        return forwarding.get();
+    }
+
+    // FNV-1a, then the murmur3 finalizer so similar ids spread over the whole ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a87ceL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private SSLSocket connect(Node node) throws IOException {
+        Socket plain = new Socket();
+        try {
+            plain.connect(new InetSocketAddress(node.host(), node.port()), CONNECT_TIMEOUT_MS);
+            plain.setTcpNoDelay(true);
+            SSLSocket socket = (SSLSocket) socketFactory.createSocket(plain, node.host(), node.port(), true);
+            socket.startHandshake();
+            return socket;
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+    }
+
+    // Opens a PEER or FORWARD connection and expects an ACK for each of the given lines
+    private SSLSocket open(Node node, String kind, OutputStream[] out, String... lines) throws IOException {
+        SSLSocket socket = connect(node);
+        try {
+            out[0] = new BufferedOutputStream(socket.getOutputStream());
+            out[0].write((kind + " " + new String(secret, StandardCharsets.UTF_8) + "\n").getBytes(StandardCharsets.UTF_8));
+            for (String line : lines) {
+                out[0].write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out[0].flush();
+            InputStream in = socket.getInputStream();
+            for (int i = 0; i <= lines.length; i++) {
+                String reply = readLine(in);
+                if (reply == null || !reply.startsWith("ACK")) {
+                    throw new IOException("Node " + node.id() + " refused the peer connection: " + reply);
+                }
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        return b < 0 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+
+    // Sends peer commands to a node and returns its one line reply to each
+    List<String> tell(Node node, List<String> commands) throws IOException {
+        OutputStream[] out = new OutputStream[1];
+        try (SSLSocket socket = open(node, "PEER", out)) {
+            for (String command : commands) {
+                out[0].write((command + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out[0].flush();
+            List<String> replies = new ArrayList<>();
+            InputStream in = socket.getInputStream();
+            for (int i = 0; i < commands.size(); i++) {
+                String reply = readLine(in);
+                if (reply == null) {
+                    throw new IOException("Node " + node.id() + " closed the connection");
+                }
+                replies.add(reply);
+            }
+            // Half close, so the other side sees the session end instead of a reset
+            socket.shutdownOutput();
+            while (in.read() >= 0) {
+                // until it closed its side too
+            }
+            return replies;
+        }
+    }
+
+    CompletableFuture<List<String>> tellAsync(Node node, List<String> commands) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return tell(node, commands);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    // Connects a session to the node serving its id. Replies are handed to onReply as
+    // they arrive, onClose runs once when the owner ends the connection.
+    CompletableFuture<Forward> forward(Node node, boolean binary, Consumer<byte[]> onReply, Runnable onClose) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                OutputStream[] out = new OutputStream[1];
+                SSLSocket socket = binary ? open(node, "FORWARD", out, "BINARY") : open(node, "FORWARD", out);
+                return new Forward(socket, out[0], onReply, onClose);
+            } catch (IOException e) {
+                System.err.println("Unable to forward to node " + node.id() + ": " + e.getMessage());
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    // One relayed session: a writer drains the session's commands to the owner,
+    // a reader passes the owner's replies back
+    class Forward {
+        private final SSLSocket socket;
+        private final OutputStream out;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(FORWARD_QUEUE);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Runnable onClose;
+        private final Thread writer;
+
+        Forward(SSLSocket socket, OutputStream out, Consumer<byte[]> onReply, Runnable onClose) {
+            this.socket = socket;
+            this.out = out;
+            this.onClose = onClose;
+            forwarding.incrementAndGet();
+            this.writer = Thread.ofVirtual().name("forward-writer").start(this::drain);
+            Thread.ofVirtual().name("forward-reader").start(() -> {
+                byte[] buf = new byte[8192];
+                try {
+                    InputStream in = socket.getInputStream();
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        if (n > 0) {
+                            byte[] reply = new byte[n];
+                            System.arraycopy(buf, 0, reply, 0, n);
+                            onReply.accept(reply);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed from either side
+                }
+                close();
+            });
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    byte[] command = queue.take();
+                    out.write(command);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                close();
+            }
+        }
+
+        // A text line, the terminator is added
+        void sendLine(byte[] buf, int off, int len) {
+            byte[] line = new byte[len + 1];
+            System.arraycopy(buf, off, line, 0, len);
+            line[len] = '\n';
+            send(line);
+        }
+
+        // A frame payload, the length prefix is added
+        void sendFrame(byte[] buf, int off, int len) {
+            CommandParser.ReplyBuffer frame = new CommandParser.ReplyBuffer().varint(len).put(buf, off, len);
+            byte[] bytes = new byte[frame.length()];
+            System.arraycopy(frame.array(), 0, bytes, 0, bytes.length);
+            send(bytes);
+        }
+
+        void send(byte[] bytes) {
+            if (!queue.offer(bytes)) {
+                System.err.println("Forwarded session is not draining, closing it.");
+                close();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            forwarding.decrementAndGet();
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Gone already
+            }
+            onClose.run();
+        }
+    }
+}
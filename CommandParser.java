@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Byte level helpers for the wire protocol, so the common commands are parsed and
+// answered without creating Strings.
+//
+// Text protocol: one command per line, optionally prefixed with "#<request id> ".
+// Binary protocol, enabled by sending the line "BINARY": every message is a frame
+//
+//   varint length | opcode | varint request id | fields
+//
+// where length covers everything after itself. Request fields: REGISTER carries a
+// varint-prefixed id and password, INCREASE/DECREASE a varint amount, HISTORY two
+// varints (from and to in epoch milliseconds), SUMMARY an optional varint-prefixed id,
+// LOGOUT, STATS, PING, WATCH and UNWATCH nothing. Replies use COUNTER (zigzag varint
+// value), OK and ERROR (varint-prefixed UTF-8 text); pushes that answer no request use
+// request id 0, e.g. the COUNTER frames a session gets after WATCH.
+//
+// Between a primary and its standby (see Replicator), REPLICATE and SNAPSHOT carry
+// journal records as encoded in the journal's segments, split over frames at any byte.
+// An empty SNAPSHOT ends the snapshot, its request id is the last sequence number in it.
+// The standby answers that and every REPLICATE with a COUNTER of the last sequence
+// number it applied.
+public class CommandParser {
+    public static final int MAX_LINE = 8192;
+    // Returned by parseAmount for anything that is not a plain non-negative int
+    public static final long INVALID = Long.MIN_VALUE;
+
+    // Binary opcodes
+    public static final byte OP_REGISTER = 0x01;
+    public static final byte OP_INCREASE = 0x02;
+    public static final byte OP_DECREASE = 0x03;
+    public static final byte OP_LOGOUT = 0x04;
+    public static final byte OP_STATS = 0x05;
+    public static final byte OP_HISTORY = 0x06;
+    public static final byte OP_PING = 0x07;
+    public static final byte OP_WATCH = 0x08;
+    public static final byte OP_UNWATCH = 0x09;
+    public static final byte OP_SUMMARY = 0x0A;
+    public static final byte OP_REPLICATE = 0x0B;
+    public static final byte OP_SNAPSHOT = 0x0C;
+    public static final byte OP_COUNTER = (byte) 0x81;
+    public static final byte OP_OK = (byte) 0x82;
+    public static final byte OP_ERROR = (byte) 0x83;
+
+    static final byte[] INCREASE = ascii("INCREASE");
+    static final byte[] DECREASE = ascii("DECREASE");
+    static final byte[] BINARY = ascii("BINARY");
+    static final byte[] WATCH = ascii("WATCH ");
+    static final byte[] INCREASED = ascii("Counter increased to ");
+    static final byte[] DECREASED = ascii("Counter decreased to ");
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // True when buf[from, to) is exactly the given token
+    static boolean matches(byte[] buf, int from, int to, byte[] token) {
+        if (to - from != token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (buf[from + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Parses the decimal token starting at from (up to the next space), like Integer.parseInt
+    // followed by a sign check: negative values come back as -1, junk as INVALID
+    static long parseAmount(byte[] buf, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i >= to || buf[i] == ' ') {
+            return INVALID;
+        }
+        long value = 0;
+        for (; i < to && buf[i] != ' '; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return INVALID;
+            }
+        }
+        if (negative) {
+            return value == 0 ? 0 : -1;
+        }
+        return value > Integer.MAX_VALUE ? INVALID : value;
+    }
+
+    // Reusable output buffer for replies
+    public static class ReplyBuffer {
+        private byte[] buf = new byte[256];
+        private int length;
+        // Start of the frame being built, -1 in text mode
+        private int frameStart = -1;
+
+        public byte[] array() {
+            return buf;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public ReplyBuffer reset() {
+            length = 0;
+            frameStart = -1;
+            return this;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > buf.length) {
+                byte[] bigger = new byte[Math.max(buf.length * 2, length + extra)];
+                System.arraycopy(buf, 0, bigger, 0, length);
+                buf = bigger;
+            }
+        }
+
+        public ReplyBuffer put(byte b) {
+            ensure(1);
+            buf[length++] = b;
+            return this;
+        }
+
+        public ReplyBuffer put(byte[] bytes, int off, int len) {
+            ensure(len);
+            System.arraycopy(bytes, off, buf, length, len);
+            length += len;
+            return this;
+        }
+
+        public ReplyBuffer put(byte[] bytes) {
+            return put(bytes, 0, bytes.length);
+        }
+
+        public ReplyBuffer utf8(String s) {
+            return put(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public ReplyBuffer decimal(long value) {
+            if (value == Long.MIN_VALUE) {
+                return put(ascii("-9223372036854775808"));
+            }
+            if (value < 0) {
+                put((byte) '-');
+                value = -value;
+            }
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            ensure(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                buf[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+            return this;
+        }
+
+        public ReplyBuffer varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[length++] = (byte) value;
+            return this;
+        }
+
+        public ReplyBuffer zigzag(long value) {
+            return varint((value << 1) ^ (value >> 63));
+        }
+
+        public ReplyBuffer bytes(byte[] bytes) {
+            varint(bytes.length);
+            return put(bytes);
+        }
+
+        // Starts a frame, the length prefix is filled in by endFrame
+        public ReplyBuffer beginFrame(byte opcode, long requestId) {
+            ensure(5);
+            frameStart = length;
+            length += 5; // room for the longest length varint we allow
+            put(opcode);
+            return varint(requestId);
+        }
+
+        public ReplyBuffer endFrame() {
+            int payload = length - frameStart - 5;
+            int prefix = varintSize(payload);
+            // Close the gap between the length prefix and the payload
+            System.arraycopy(buf, frameStart + 5, buf, frameStart + prefix, payload);
+            int pos = frameStart;
+            long value = payload;
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos] = (byte) value;
+            length = frameStart + prefix + payload;
+            frameStart = -1;
+            return this;
+        }
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Reads varints and length-prefixed fields out of a received frame
+    public static class Cursor {
+        byte[] buf;
+        int pos;
+        int end;
+
+        public Cursor wrap(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.pos = off;
+            this.end = off + len;
+            return this;
+        }
+
+        // -1 when the frame ends early or the varint is too long
+        public long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64 && pos < end; shift += 7) {
+                byte b = buf[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            return -1;
+        }
+
+        public String string() {
+            long length = varint();
+            if (length < 0 || length > end - pos) {
+                return null;
+            }
+            String s = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return s;
+        }
+
+        public byte opcode() {
+            return pos < end ? buf[pos++] : 0;
+        }
+    }
+
+    // Returns the payload length of the frame at buf[from, to), or -1 when the length prefix is incomplete
+    static int frameLength(byte[] buf, int from, int to) {
+        int value = 0;
+        for (int shift = 0, i = from; i < to && shift <= 28; shift += 7, i++) {
+            value |= (buf[i] & 0x7F) << shift;
+            if (buf[i] >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    // Buffered reader for the blocking handler, hands out lines and frames without copying them
+    public static class InputReader {
+        private final InputStream in;
+        private byte[] buf = new byte[8192];
+        private int start;
+        private int end;
+        int messageStart;
+        int messageLength;
+
+        public InputReader(InputStream in) {
+            this.in = in;
+        }
+
+        public byte[] buffer() {
+            return buf;
+        }
+
+        // True when another message can be read without blocking
+        public boolean ready() throws IOException {
+            return start < end || in.available() > 0;
+        }
+
+        // Next line without its line terminator, false at end of stream
+        public boolean readLine() throws IOException {
+            int scanned = 0;
+            while (true) {
+                int newline = indexOf(buf, start + scanned, end, (byte) '\n');
+                if (newline >= 0) {
+                    messageStart = start;
+                    messageLength = (newline > start && buf[newline - 1] == '\r' ? newline - 1 : newline) - start;
+                    start = newline + 1;
+                    return true;
+                }
+                scanned = end - start;
+                if (!fill()) {
+                    return false;
+                }
+            }
+        }
+
+        // Next binary frame payload, false at end of stream
+        public boolean readFrame() throws IOException {
+            while (true) {
+                int length = frameLength(buf, start, end);
+                if (length > MAX_LINE) {
+                    throw new IOException("Frame too large");
+                }
+                if (length >= 0) {
+                    int prefix = varintSize(length);
+                    if (end - start >= prefix + length) {
+                        messageStart = start + prefix;
+                        messageLength = length;
+                        start += prefix + length;
+                        return true;
+                    }
+                }
+                if (!fill()) {
+                    return false;
+                }
+            }
+        }
+
+        private boolean fill() throws IOException {
+            if (end - start > MAX_LINE) {
+                throw new IOException("Line too long");
+            }
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end == buf.length) {
+                byte[] bigger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, bigger, 0, end);
+                buf = bigger;
+            }
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) {
+                return false;
+            }
+            end += n;
+            return true;
+        }
+    }
+}
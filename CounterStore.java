@@ -0,0 +1,135 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// Counter and session count updates of the heap registry. Values are longs
+// updated with compare-and-set, so concurrent sessions of one id never lose an
+// update and counter updates never block, only retiring an entry waits for the
+// ones in progress. Overflow either rejects the operation or saturates
+// at Long.MIN_VALUE / Long.MAX_VALUE (SERVER_COUNTER_OVERFLOW).
+public class CounterStore {
+    public enum OverflowPolicy { REJECT, SATURATE }
+
+    // The mutable part of a client entry, extended by the heap registry's entries
+    public static class Entry {
+        private volatile long counter;
+        private volatile int instances;
+        // Counter updates in progress, plus RETIRED once the entry is removed
+        private volatile int updates;
+
+        protected Entry(long counter, int instances) {
+            this.counter = counter;
+            this.instances = instances;
+        }
+
+        public long counter() {
+            return counter;
+        }
+
+        public int instances() {
+            return instances;
+        }
+    }
+
+    private static final VarHandle COUNTER;
+    private static final VarHandle INSTANCES;
+    private static final VarHandle UPDATES;
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            COUNTER = lookup.findVarHandle(Entry.class, "counter", long.class);
+            INSTANCES = lookup.findVarHandle(Entry.class, "instances", int.class);
+            UPDATES = lookup.findVarHandle(Entry.class, "updates", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final OverflowPolicy policy;
+
+    public CounterStore(OverflowPolicy policy) {
+        this.policy = policy;
+    }
+
+    // Atomically adds delta and returns the new value
+    public long applyDelta(Entry entry, long delta) {
+        return add(getAndApplyDelta(entry, delta), delta);
+    }
+
+    // Atomically adds delta and returns the previous value, the new one is add(previous, delta)
+    public long getAndApplyDelta(Entry entry, long delta) {
+        long current;
+        long next;
+        do {
+            current = entry.counter;
+            next = add(current, delta);
+        } while (!COUNTER.weakCompareAndSet(entry, current, next));
+        return current;
+    }
+
+    // Sum under the overflow policy, throws ArithmeticException when rejecting
+    public long add(long value, long delta) {
+        long sum = value + delta;
+        // Overflow iff both operands have the sign opposite to the result
+        if (((value ^ sum) & (delta ^ sum)) < 0) {
+            if (policy == OverflowPolicy.REJECT) {
+                throw new ArithmeticException("counter overflow");
+            }
+            return delta > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        return sum;
+    }
+
+    // Starts an update of the counter and what comes with it, false once the entry is retired
+    public boolean beginUpdate(Entry entry) {
+        int current;
+        do {
+            current = entry.updates;
+            if (current < 0) {
+                return false;
+            }
+        } while (!UPDATES.weakCompareAndSet(entry, current, current + 1));
+        return true;
+    }
+
+    public void endUpdate(Entry entry) {
+        UPDATES.getAndAdd(entry, -1);
+    }
+
+    // Refuses further updates and waits for the ones in progress to end
+    public void retire(Entry entry) {
+        UPDATES.getAndBitwiseOr(entry, RETIRED);
+        for (int spins = 0; entry.updates != RETIRED; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    // Takes a session slot unless max sessions are already open
+    public boolean tryAcquireInstance(Entry entry, int max) {
+        int current;
+        do {
+            current = entry.instances;
+            if (current >= max) {
+                return false;
+            }
+        } while (!INSTANCES.weakCompareAndSet(entry, current, current + 1));
+        return true;
+    }
+
+    // Gives a session slot back and returns how many are still open
+    public int releaseInstance(Entry entry) {
+        int current;
+        do {
+            current = entry.instances;
+            if (current <= 0) {
+                return 0;
+            }
+        } while (!INSTANCES.weakCompareAndSet(entry, current, current - 1));
+        return current - 1;
+    }
+}
@@ -0,0 +1,159 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.mindrot.jbcrypt.BCrypt;
+
+// Stores bcrypt hashes of the password hashes clients send and checks logins
+// against them. bcrypt is slow on purpose, so hashing and verification run on
+// a small bounded pool instead of the session threads or event loops; when
+// that pool is saturated the login fails fast. A successful verification is
+// remembered for a short while, so the second and third session of an id do
+// not pay the full cost again.
+public class CredentialStore {
+    private final int cost;
+    private final ThreadPoolExecutor pool;
+    private final long cacheTtlNanos;
+    private final int cacheSize;
+    // id -> last verified password, least recently used first
+    private final Map<String, Verified> cache;
+
+    // Login latency, see averageVerifyMicros()
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder verifyNanos = new LongAdder();
+
+    private static class Verified {
+        final byte[] digest;
+        final String hash;
+        final long expiresAt;
+
+        Verified(byte[] digest, String hash, long expiresAt) {
+            this.digest = digest;
+            this.hash = hash;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public CredentialStore(int cost, int threads, int queueSize, long cacheTtlMillis, int cacheSize) {
+        this.cost = cost;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread t = new Thread(r, "bcrypt");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+                return size() > CredentialStore.this.cacheSize;
+            }
+        };
+    }
+
+    // Hashes a new client's password on the pool
+    public CompletableFuture<String> hash(String password) {
+        try {
+            return CompletableFuture.supplyAsync(() -> BCrypt.hashpw(password, BCrypt.gensalt(cost)), pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Checks a login, answered from the cache when the same password was verified recently
+    public CompletableFuture<Boolean> verify(String id, String password, String hash) {
+        byte[] digest = digest(password);
+        if (cacheTtlNanos > 0) {
+            Verified verified;
+            synchronized (cache) {
+                verified = cache.get(id);
+            }
+            if (verified != null && verified.hash.equals(hash) && System.nanoTime() - verified.expiresAt < 0
+                    && MessageDigest.isEqual(verified.digest, digest)) {
+                cacheHits.increment();
+                return CompletableFuture.completedFuture(true);
+            }
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                boolean valid = matches(password, hash);
+                verifyNanos.add(System.nanoTime() - start);
+                verifications.increment();
+                if (valid && cacheTtlNanos > 0) {
+                    synchronized (cache) {
+                        cache.put(id, new Verified(digest, hash, System.nanoTime() + cacheTtlNanos));
+                    }
+                }
+                return valid;
+            }, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Forgets a verified password, e.g. when the id is removed
+    public void invalidate(String id) {
+        synchronized (cache) {
+            cache.remove(id);
+        }
+    }
+
+    private static boolean matches(String password, String hash) {
+        if (hash.startsWith("$2")) {
+            return BCrypt.checkpw(password, hash);
+        }
+        // Entries journaled before bcrypt was introduced hold the client's hash as is
+        return MessageDigest.isEqual(hash.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] digest(String password) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Times one hash at the configured cost, so the operator sees what a login costs
+    public long calibrate() {
+        long start = System.nanoTime();
+        BCrypt.hashpw("calibration", BCrypt.gensalt(cost));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    public long verifications() {
+        return verifications.sum();
+    }
+
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    // Mean time of a bcrypt verification in microseconds, cache hits excluded
+    public long averageVerifyMicros() {
+        long count = verifications.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(verifyNanos.sum() / count);
+    }
+
+    public int queued() {
+        return pool.getQueue().size();
+    }
+
+    public int active() {
+        return pool.getActiveCount();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
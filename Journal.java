@@ -0,0 +1,561 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Write-ahead journal of the client table. Every registration, counter change and
+// removal is appended as a small binary record to a memory-mapped segment:
+//
+//   int length | long seq | byte op | long amount | short idLen | id | short dataLen | data | int crc32c
+//
+// length covers seq..data and the checksum covers the same bytes, a zero length
+// marks the end of a segment. Appenders only take the record's space and sequence
+// number under the lock and write it outside, its length goes in last and in sequence
+// order, so the records before the first zero length are exactly the acknowledged ones.
+// Full segments are sealed and a background thread folds them into a snapshot
+// (snapshot-<lastSeq>.bin), so recovery only reads the latest snapshot plus the segments
+// written since, however long the history. The next segment is mapped ahead of time on
+// the same thread. A Listener (the Replicator of a primary) can follow the records as
+// they are appended.
+public final class Journal {
+    public static final byte REGISTER = 1;
+    public static final byte DELTA = 2;
+    public static final byte REMOVE = 3;
+
+    private static final int SNAPSHOT_MAGIC = 0x534E4150; // "SNAP"
+    // length + seq + op + amount + idLen + dataLen + crc
+    private static final int RECORD_OVERHEAD = 4 + 8 + 1 + 8 + 2 + 2 + 4;
+    private static final byte[] NO_DATA = new byte[0];
+    private static final String SPARE = "journal.spare";
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+    // Receives the recovered client table
+    public interface RecoveryHandler {
+        void restore(String id, String password, long counter);
+    }
+
+    // Sees every record as it is appended, encoded as in the segment, in sequence order
+    public interface Listener {
+        void appended(ByteBuffer segment, int offset, int length, long seq);
+    }
+
+    // One decoded record
+    public record Record(long seq, byte op, long amount, String id, String data) {
+    }
+
+    private static class Entry {
+        String password;
+        long counter;
+
+        Entry(String password, long counter) {
+            this.password = password;
+            this.counter = counter;
+        }
+    }
+
+    // A snapshot loaded in memory while folding or recovering
+    private static class State {
+        final Map<String, Entry> clients = new HashMap<>();
+        long lastSeq;
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final ScheduledExecutorService background;
+
+    // Guarded by this
+    private MappedByteBuffer active;
+    private int activePosition;
+    private long activeFirstSeq;
+    private long nextSeq = 1;
+    private MappedByteBuffer spare;
+
+    // Last record whose length is written, they are published in sequence order
+    private volatile long published;
+    private volatile Listener listener;
+    private volatile long listenerFrom;
+
+    public Journal(String directory, int segmentSize, long snapshotIntervalMillis, long syncIntervalMillis) throws IOException {
+        this.dir = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        // Anything older than the active segment gets folded into the snapshot periodically
+        background.scheduleWithFixedDelay(() -> {
+            rollIfNotEmpty();
+            fold();
+        }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        if (syncIntervalMillis > 0) {
+            background.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Rebuilds the client table from the latest snapshot and the segments after it,
+    // then opens a fresh segment for new records. Only the last segment may end in a
+    // damaged record, anything else missing from the sequence fails the recovery.
+    public synchronized void recover(RecoveryHandler handler) throws IOException {
+        State state = loadSnapshot();
+        long snapshotSeq = state.lastSeq;
+        int records = 0;
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            records += replay(segments.get(i), state, i == segments.size() - 1);
+        }
+        for (Map.Entry<String, Entry> e : state.clients.entrySet()) {
+            handler.restore(e.getKey(), e.getValue().password, e.getValue().counter);
+        }
+        System.out.println("Journal recovered " + state.clients.size() + " clients (snapshot at " + snapshotSeq
+                + ", " + records + " records replayed)");
+
+        nextSeq = state.lastSeq + 1;
+        published = state.lastSeq;
+        Files.deleteIfExists(dir.resolve(SPARE));
+        openSegment();
+        background.execute(() -> {
+            prepareSpare();
+            fold();
+        });
+    }
+
+    // Returns the record's sequence number, 0 when it could not be written
+    public long append(byte op, String id, long amount, String data) {
+        return append(op, id.getBytes(StandardCharsets.UTF_8), amount, data == null ? null : data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Allocation free variant for the counter path, data may be null. Returns once the
+    // record and every one before it are published.
+    public long append(byte op, byte[] idBytes, long amount, byte[] data) {
+        int size = encodedSize(idBytes, data);
+        MappedByteBuffer segment;
+        int start;
+        long seq;
+        synchronized (this) {
+            // Keep room for the zero length that ends the segment
+            if (segmentSize - activePosition < size + 4) {
+                try {
+                    roll();
+                } catch (IOException e) {
+                    System.err.println("Error rolling journal segment: " + e.getMessage());
+                    return 0;
+                }
+            }
+            segment = active;
+            start = activePosition;
+            activePosition += size;
+            seq = nextSeq++;
+        }
+        int length = encodeBody(segment, start, seq, op, idBytes, amount, data, CRC.get());
+        awaitPublished(seq - 1);
+        segment.putInt(start, length);
+        Listener following = listener;
+        if (following != null && seq >= listenerFrom) {
+            following.appended(segment, start, size, seq);
+        }
+        published = seq;
+        return seq;
+    }
+
+    // The records reserved before seq are written by other threads, usually already done
+    private void awaitPublished(long seq) {
+        for (int spins = 0; published < seq; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    static int encodedSize(byte[] idBytes, byte[] data) {
+        return RECORD_OVERHEAD + idBytes.length + (data == null ? 0 : data.length);
+    }
+
+    // Writes one record at the buffer's position, which needs encodedSize bytes left
+    static void encode(ByteBuffer out, long seq, byte op, byte[] idBytes, long amount, byte[] data, CRC32C crc) {
+        int start = out.position();
+        int length = encodeBody(out, start, seq, op, idBytes, amount, data, crc);
+        out.putInt(start, length);
+        out.position(start + length + 8);
+    }
+
+    // Writes the record at start except its length, which is returned. The length is put
+    // in last, so a torn record reads as the end. Absolute puts only, appenders share the buffer.
+    private static int encodeBody(ByteBuffer out, int start, long seq, byte op, byte[] idBytes, long amount, byte[] data, CRC32C crc) {
+        byte[] dataBytes = data == null ? NO_DATA : data;
+        int index = start + 4;
+        out.putLong(index, seq);
+        out.put(index + 8, op);
+        out.putLong(index + 9, amount);
+        out.putShort(index + 17, (short) idBytes.length);
+        out.put(index + 19, idBytes);
+        index += 19 + idBytes.length;
+        out.putShort(index, (short) dataBytes.length);
+        out.put(index + 2, dataBytes);
+        index += 2 + dataBytes.length;
+
+        int length = index - start - 4;
+        crc.reset();
+        crc.update(out.slice(start + 4, length));
+        out.putInt(index, (int) crc.getValue());
+        return length;
+    }
+
+    // Reads the record at the buffer's position and moves past it. null at the zero length
+    // that ends a segment, or when the buffer ends before the record does (a torn write,
+    // or a record still arriving), the position is left where it was then.
+    static Record decode(ByteBuffer buffer, CRC32C check) throws IOException {
+        int start = buffer.position();
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt(start);
+        if (length <= 0 || length + 8 > buffer.remaining()) {
+            return null;
+        }
+        buffer.position(start + 4);
+        check.reset();
+        check.update(buffer.slice(start + 4, length));
+        long seq = buffer.getLong();
+        byte op = buffer.get();
+        long amount = buffer.getLong();
+        String id = readString(buffer);
+        String data = readString(buffer);
+        if ((int) check.getValue() != buffer.getInt()) {
+            throw new IOException("checksum mismatch at seq " + seq);
+        }
+        return new Record(seq, op, amount, id, data);
+    }
+
+    // Passes every record appended from now on to listener and returns the sequence number
+    // of the first. The active segment is sealed first, so snapshot() finds every record
+    // before that one in the snapshot and the sealed segments.
+    public synchronized long follow(Listener listener) throws IOException {
+        if (activePosition > 0) {
+            roll();
+        }
+        listenerFrom = nextSeq;
+        this.listener = listener;
+        return nextSeq;
+    }
+
+    public synchronized void unfollow(Listener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+
+    // Hands the client table to handler, with at least every record before seq applied, and
+    // returns the sequence number of the last record it includes. The sealed segments are
+    // folded on the background thread first, so no fold deletes them while they are read.
+    public long snapshot(long seq, RecoveryHandler handler) throws IOException {
+        State state;
+        try {
+            state = background.submit(() -> {
+                foldSealed();
+                return loadSnapshot();
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException | RejectedExecutionException e) {
+            throw new IOException("Journal closed");
+        }
+        if (state.lastSeq < seq - 1) {
+            throw new IOException("Journal snapshot ends at " + state.lastSeq + ", before " + seq);
+        }
+        for (Map.Entry<String, Entry> e : state.clients.entrySet()) {
+            handler.restore(e.getKey(), e.getValue().password, e.getValue().counter);
+        }
+        return state.lastSeq;
+    }
+
+    // The msync runs outside the lock, appends carry on meanwhile
+    public void sync() {
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = active;
+        }
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    public void close() {
+        background.shutdown();
+        sync();
+    }
+
+    private void rollIfNotEmpty() {
+        synchronized (this) {
+            if (active != null && activePosition > 0) {
+                try {
+                    roll();
+                } catch (IOException e) {
+                    System.err.println("Error rolling journal segment: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Moves on to the segment mapped ahead, only renaming it here. The sealed segment is
+    // forced on the background thread once its last records are published, before it is folded.
+    private void roll() throws IOException {
+        MappedByteBuffer sealed = active;
+        long sealedLastSeq = nextSeq - 1;
+        MappedByteBuffer next = spare;
+        spare = null;
+        if (next == null) {
+            openSegment();
+        } else {
+            Files.move(dir.resolve(SPARE), segmentFile(nextSeq), StandardCopyOption.ATOMIC_MOVE);
+            active = next;
+            activePosition = 0;
+            activeFirstSeq = nextSeq;
+        }
+        background.execute(() -> {
+            awaitPublished(sealedLastSeq);
+            sealed.force();
+            prepareSpare();
+            fold();
+        });
+    }
+
+    private void openSegment() throws IOException {
+        active = map(segmentFile(nextSeq));
+        activePosition = 0;
+        activeFirstSeq = nextSeq;
+    }
+
+    private void prepareSpare() {
+        synchronized (this) {
+            if (spare != null) {
+                return;
+            }
+        }
+        try {
+            MappedByteBuffer next = map(dir.resolve(SPARE));
+            synchronized (this) {
+                spare = next;
+            }
+        } catch (IOException e) {
+            System.err.println("Error preparing journal segment: " + e.getMessage());
+        }
+    }
+
+    // Truncated first, a file left by an earlier run must not show its old records
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private Path segmentFile(long firstSeq) {
+        return dir.resolve(String.format("journal-%020d.log", firstSeq));
+    }
+
+    private void fold() {
+        try {
+            foldSealed();
+        } catch (IOException e) {
+            System.err.println("Error writing journal snapshot: " + e.getMessage());
+        }
+    }
+
+    // Folds every sealed segment into a new snapshot and deletes what it covers
+    private void foldSealed() throws IOException {
+        long activeSeq;
+        synchronized (this) {
+            activeSeq = activeFirstSeq;
+        }
+        awaitPublished(activeSeq - 1);
+        List<Path> sealed = new ArrayList<>();
+        for (Path segment : segments()) {
+            if (firstSeqOf(segment) < activeSeq) {
+                sealed.add(segment);
+            }
+        }
+        if (sealed.isEmpty()) {
+            return;
+        }
+
+        State state = loadSnapshot();
+        for (Path segment : sealed) {
+            replay(segment, state, false);
+        }
+        writeSnapshot(state);
+
+        for (Path segment : sealed) {
+            Files.deleteIfExists(segment);
+        }
+        for (Path snapshot : list("snapshot-*.bin")) {
+            if (firstSeqOf(snapshot) < state.lastSeq) {
+                Files.deleteIfExists(snapshot);
+            }
+        }
+    }
+
+    // Applies the records after state.lastSeq, each has to follow the one before it. A
+    // damaged record only ends the journal in its last segment, a torn write at a crash.
+    private int replay(Path segment, State state, boolean last) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        CRC32C check = new CRC32C();
+        int records = 0;
+        while (true) {
+            int start = buffer.position();
+            Record record;
+            try {
+                record = decode(buffer, check);
+            } catch (IOException e) {
+                if (!last) {
+                    throw new IOException("Journal " + e.getMessage() + " in " + segment.getFileName() + ", later segments follow it");
+                }
+                System.err.println("Journal " + e.getMessage() + " in " + segment.getFileName() + ", recovered up to seq " + state.lastSeq);
+                // Ends the segment there, it is no longer the last one once recovery opens a new one
+                try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.allocate(4), start);
+                    channel.force(true);
+                }
+                break;
+            }
+            if (record == null) {
+                break; // end of segment or torn write
+            }
+            if (record.seq() <= state.lastSeq) {
+                continue; // already in the snapshot
+            }
+            if (record.seq() != state.lastSeq + 1) {
+                throw new IOException("Journal " + segment.getFileName() + " continues at seq " + record.seq() + " after " + state.lastSeq);
+            }
+            state.lastSeq = record.seq();
+            records++;
+            switch (record.op()) {
+                case REGISTER:
+                    state.clients.put(record.id(), new Entry(record.data(), 0));
+                    break;
+                case DELTA:
+                    Entry entry = state.clients.get(record.id());
+                    if (entry != null) {
+                        entry.counter += record.amount();
+                    }
+                    break;
+                case REMOVE:
+                    state.clients.remove(record.id());
+                    break;
+                default:
+                    System.err.println("Unknown journal record " + record.op() + " at seq " + record.seq());
+            }
+        }
+        return records;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private State loadSnapshot() throws IOException {
+        List<Path> snapshots = list("snapshot-*.bin");
+        // Newest first, fall back to an older one if the newest is damaged
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Path file = snapshots.get(i);
+            try (InputStream raw = new BufferedInputStream(Files.newInputStream(file))) {
+                CheckedInputStream checked = new CheckedInputStream(raw, new CRC32C());
+                DataInputStream in = new DataInputStream(checked);
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("bad magic");
+                }
+                State state = new State();
+                state.lastSeq = in.readLong();
+                int count = in.readInt();
+                for (int n = 0; n < count; n++) {
+                    String id = in.readUTF();
+                    String password = in.readUTF();
+                    state.clients.put(id, new Entry(password, in.readLong()));
+                }
+                int expected = (int) checked.getChecksum().getValue();
+                if (new DataInputStream(raw).readInt() != expected) {
+                    throw new IOException("checksum mismatch");
+                }
+                return state;
+            } catch (IOException e) {
+                System.err.println("Ignoring damaged snapshot " + file.getFileName() + ": " + e.getMessage());
+            }
+        }
+        return new State();
+    }
+
+    private void writeSnapshot(State state) throws IOException {
+        Path file = dir.resolve(String.format("snapshot-%020d.bin", state.lastSeq));
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (OutputStream raw = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            CheckedOutputStream checked = new CheckedOutputStream(raw, new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(state.lastSeq);
+            out.writeInt(state.clients.size());
+            for (Map.Entry<String, Entry> e : state.clients.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue().password);
+                out.writeLong(e.getValue().counter);
+            }
+            out.flush();
+            new DataOutputStream(raw).writeInt((int) checked.getChecksum().getValue());
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private List<Path> segments() throws IOException {
+        return list("journal-*.log");
+    }
+
+    // Files sorted by the sequence number in their name
+    private List<Path> list(String glob) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort((a, b) -> Long.compare(firstSeqOf(a), firstSeqOf(b)));
+        return files;
+    }
+
+    private static long firstSeqOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+    }
+}
@@ -0,0 +1,427 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator built on Client. Opens N TLS sessions and replays a
+// weighted mix of REGISTER/INCREASE/DECREASE/LOGOUT at a fixed total rate.
+//
+// Scheduling is open loop: every operation has an intended send time fixed in
+// advance, commands are pipelined with request ids, and latency is measured
+// from the intended time to the reply. A stalled server therefore shows up as
+// high latency for everything scheduled during the stall, instead of quietly
+// lowering the send rate (coordinated omission).
+//
+//   java -cp .:jbcrypt-0.4.jar LoadGenerator connections=20 rate=2000 duration=30
+//
+// Without a truststore option it creates a throwaway keystore and truststore
+// with keytool and runs the server in process, so nothing else is needed.
+// SERVER_ options are passed to that server, e.g. SERVER_MODE=nio.
+public class LoadGenerator {
+    enum Op { REGISTER, INCREASE, DECREASE, LOGOUT }
+
+    private static final String PASSWORD = "5e884898da28047151d0e56f8dc6292773603d0d6aabbdd62a11ef721d1542d8";
+
+    private final String host;
+    private final int port;
+    private final String truststore;
+    private final String truststorePassword;
+    private final int connections;
+    private final long intervalNanos;
+    private final long durationNanos;
+    private final Op[] mix;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+    private final LongAdder[] errors = new LongAdder[Op.values().length];
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private volatile long startNanos;
+
+    LoadGenerator(String host, int port, String truststore, String truststorePassword, int connections,
+                  int rate, int durationSeconds, Op[] mix) {
+        this.host = host;
+        this.port = port;
+        this.truststore = truststore;
+        this.truststorePassword = truststorePassword;
+        this.connections = connections;
+        // Each connection sends its share of the total rate
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(connections) / rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.mix = mix;
+        for (Op op : Op.values()) {
+            latencies[op.ordinal()] = new LatencyHistogram();
+            errors[op.ordinal()] = new LongAdder();
+        }
+    }
+
+    // An operation waiting for its reply
+    private record Pending(Op op, long intendedNanos) {
+    }
+
+    private class Worker {
+        private final int index;
+        private final String id;
+        private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+        private volatile Client client;
+        private Thread reader;
+        private volatile boolean connected;
+        private long nextTag = 1;
+
+        Worker(int index) {
+            this.index = index;
+            this.id = "load-" + index;
+        }
+
+        // Connects and logs in before the clock starts
+        boolean setup() {
+            client = new Client();
+            client.startConnection(host, port, truststore, truststorePassword);
+            if (!client.isConnected()) {
+                return false;
+            }
+            String reply = client.sendMessage("REGISTER " + id + " " + PASSWORD);
+            if (reply == null || !reply.startsWith("ACK")) {
+                System.err.println("Registration of " + id + " failed: " + reply);
+                client.stopConnection();
+                return false;
+            }
+            startReader();
+            return true;
+        }
+
+        void run() {
+            // Spread the connections evenly over one interval
+            long next = startNanos + intervalNanos * index / connections;
+            long end = startNanos + durationNanos;
+            while (next - end < 0) {
+                long delay = next - System.nanoTime();
+                while (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                    delay = next - System.nanoTime();
+                }
+                Op op = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+                if (!connected && op != Op.REGISTER) {
+                    reconnect(next);
+                }
+                switch (op) {
+                    case INCREASE -> send(op, next, "INCREASE " + amount());
+                    case DECREASE -> send(op, next, "DECREASE " + amount());
+                    case LOGOUT -> logout(next, true);
+                    case REGISTER -> {
+                        // A fresh session of the same id
+                        if (connected) {
+                            logout(next, false);
+                        }
+                        reconnect(next);
+                    }
+                }
+                next += intervalNanos;
+            }
+            // Wait for the replies still in flight, then leave
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (connected && !pending.isEmpty() && System.nanoTime() - deadline < 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            if (connected) {
+                logout(System.nanoTime(), false);
+            }
+            lost.add(pending.size());
+        }
+
+        private int amount() {
+            return ThreadLocalRandom.current().nextInt(1, 101);
+        }
+
+        private void send(Op op, long intendedNanos, String command) {
+            long tag = nextTag++;
+            // Registered before sending so the reader cannot see the reply first
+            pending.put(tag, new Pending(op, intendedNanos));
+            sent.increment();
+            if (!connected || !client.sendTagged(tag, command)) {
+                pending.remove(tag);
+                errors[op.ordinal()].increment();
+            }
+        }
+
+        // LOGOUT ends the connection, wait until the server closed it
+        private void logout(long intendedNanos, boolean measured) {
+            if (!connected) {
+                if (measured) {
+                    sent.increment();
+                    errors[Op.LOGOUT.ordinal()].increment();
+                }
+                return;
+            }
+            if (measured) {
+                send(Op.LOGOUT, intendedNanos, "LOGOUT");
+            } else {
+                client.sendTagged(nextTag++, "LOGOUT");
+            }
+            try {
+                reader.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            client.stopConnection();
+            connected = false;
+        }
+
+        // Opens a new connection and logs in again, measured as a REGISTER
+        private void reconnect(long intendedNanos) {
+            client = new Client();
+            client.startConnection(host, port, truststore, truststorePassword);
+            if (!client.isConnected()) {
+                sent.increment();
+                errors[Op.REGISTER.ordinal()].increment();
+                return;
+            }
+            startReader();
+            // Commands pipelined behind the REGISTER are handled after it
+            send(Op.REGISTER, intendedNanos, "REGISTER " + id + " " + PASSWORD);
+        }
+
+        private void startReader() {
+            connected = true;
+            Client current = client;
+            reader = Thread.ofVirtual().name("reader-" + id).start(() -> {
+                try {
+                    String line;
+                    while ((line = current.readReply()) != null) {
+                        onReply(line);
+                    }
+                } catch (IOException e) {
+                    // Connection closed
+                }
+                if (client == current) {
+                    connected = false;
+                    // Whatever was not answered will never be
+                    lost.add(pending.size());
+                    pending.clear();
+                }
+            });
+        }
+
+        private void onReply(String line) {
+            int space = line.indexOf(' ');
+            if (!line.startsWith("#") || space < 0) {
+                return; // e.g. the inactivity notice
+            }
+            Pending p;
+            try {
+                p = pending.remove(Long.parseLong(line.substring(1, space)));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (p == null) {
+                return;
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - p.intendedNanos());
+            latencies[p.op().ordinal()].record(micros);
+            String reply = line.substring(space + 1);
+            if (reply.startsWith("ERROR") || reply.startsWith("Use one of")) {
+                errors[p.op().ordinal()].increment();
+            }
+        }
+    }
+
+    void run() throws InterruptedException {
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            workers.add(new Worker(i));
+        }
+
+        long setupStart = System.nanoTime();
+        LongAdder ready = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (Worker worker : workers) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                if (worker.setup()) {
+                    ready.increment();
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        System.out.println(ready.sum() + " of " + connections + " sessions ready in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart) + " ms");
+
+        startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+        threads.clear();
+        for (Worker worker : workers) {
+            if (worker.connected) {
+                threads.add(Thread.ofVirtual().name("sender-" + worker.id).start(worker::run));
+            }
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        report(System.nanoTime() - startNanos);
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        LatencyHistogram all = new LatencyHistogram();
+        long errorCount = 0;
+        for (Op op : Op.values()) {
+            all.add(latencies[op.ordinal()]);
+            errorCount += errors[op.ordinal()].sum();
+        }
+        double target = connections * 1e9 / intervalNanos;
+        System.out.printf("Sent %d operations in %.1f s: target %.0f ops/s, completed %.0f ops/s, %d errors, %d lost%n",
+                sent.sum(), seconds, target, all.count() / seconds, errorCount, lost.sum());
+        System.out.printf("%-9s %9s %7s %9s %9s %9s %9s%n", "op", "count", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Op op : Op.values()) {
+            printRow(op.name(), latencies[op.ordinal()], errors[op.ordinal()].sum());
+        }
+        printRow("ALL", all, errorCount);
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram, long errors) {
+        System.out.printf("%-9s %9d %7d %9.2f %9.2f %9.2f %9.2f%n", name, histogram.count(), errors,
+                histogram.percentile(50) / 1000.0, histogram.percentile(99) / 1000.0,
+                histogram.percentile(99.9) / 1000.0, histogram.max() / 1000.0);
+    }
+
+    // "increase=70,decrease=25,logout=4,register=1" as a table to draw from
+    static Op[] parseMix(String spec) {
+        List<Op> table = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=", 2);
+            Op op = Op.valueOf(kv[0].trim().toUpperCase());
+            int weight = kv.length == 2 ? Integer.parseInt(kv[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                table.add(op);
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("empty mix");
+        }
+        return table.toArray(new Op[0]);
+    }
+
+    // Creates a self-signed server certificate and a truststore holding it with the
+    // JDK's keytool, everything deleted again when the JVM exits
+    static Path createThrowawayStores(String password) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("loadgen");
+        dir.toFile().deleteOnExit();
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        String keystore = dir.resolve("server.keystore").toString();
+        String certificate = dir.resolve("server.crt").toString();
+        String truststore = dir.resolve("client.truststore").toString();
+        keytool(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-validity", "1", "-storetype", "JKS",
+                "-keystore", keystore, "-storepass", password, "-keypass", password);
+        keytool(keytool, "-exportcert", "-alias", "server", "-keystore", keystore, "-storepass", password,
+                "-file", certificate);
+        keytool(keytool, "-importcert", "-noprompt", "-alias", "server", "-file", certificate, "-storetype", "JKS",
+                "-keystore", truststore, "-storepass", password);
+        for (String file : new String[] {keystore, certificate, truststore}) {
+            new File(file).deleteOnExit();
+        }
+        return dir;
+    }
+
+    private static void keytool(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output.trim());
+        }
+    }
+
+    // Runs a Server on its own thread and waits until it accepts connections
+    static void startEmbeddedServer(Path dir, String password, int port, Map<String, String> serverOptions)
+            throws InterruptedException, IOException {
+        System.setProperty("SERVER_KEYSTORE", dir.resolve("server.keystore").toString());
+        System.setProperty("SERVER_KEYSTORE_PASSWORD", password);
+        System.setProperty("SERVER_TRUSTSTORE_PASSWORD", password);
+        System.setProperty("SERVER_LOG_FILE", dir.resolve("logfile.JSON").toString());
+        System.setProperty("SERVER_JOURNAL", "off");
+        // Every connection comes from this machine and the point is to measure the server,
+        // so no per address cap and no rate limit unless asked for
+        System.setProperty("SERVER_MAX_CONNECTIONS_PER_IP", "0");
+        System.setProperty("SERVER_RATE_LIMIT", "0");
+        serverOptions.forEach(System::setProperty);
+
+        Thread server = new Thread(() -> new Server().start(port), "embedded-server");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.nanoTime() - deadline > 0) {
+                    throw new IOException("Embedded server did not start on port " + port);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("host", "localhost");
+        options.put("port", "5001");
+        options.put("connections", "10");
+        options.put("rate", "1000");
+        options.put("duration", "10");
+        options.put("mix", "increase=70,decrease=25,logout=4,register=1");
+        Map<String, String> serverOptions = new LinkedHashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                System.out.println("Usage: java LoadGenerator [host=] [port=] [connections=] [rate=<ops/s>] [duration=<s>]"
+                        + " [mix=increase=70,decrease=25,logout=4,register=1] [truststore= truststorePassword=] [SERVER_...=]");
+                return;
+            }
+            if (kv[0].startsWith("SERVER_")) {
+                serverOptions.put(kv[0], kv[1]);
+            } else {
+                options.put(kv[0], kv[1]);
+            }
+        }
+
+        int port = Integer.parseInt(options.get("port"));
+        String truststore = options.get("truststore");
+        String truststorePassword = options.get("truststorePassword");
+        Path dir = null;
+        if (truststore == null) {
+            String password = UUID.randomUUID().toString();
+            dir = createThrowawayStores(password);
+            startEmbeddedServer(dir, password, port, serverOptions);
+            truststore = dir.resolve("client.truststore").toString();
+            truststorePassword = password;
+        }
+
+        LoadGenerator generator = new LoadGenerator(options.get("host"), port, truststore, truststorePassword,
+                Integer.parseInt(options.get("connections")), Integer.parseInt(options.get("rate")),
+                Integer.parseInt(options.get("duration")), parseMix(options.get("mix")));
+        generator.run();
+        if (dir != null) {
+            // The log segments written so far, and the index the server writes for the last one on exit
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "logfile.JSON.*")) {
+                for (Path file : files) {
+                    file.toFile().deleteOnExit();
+                    new File(file + ".idx").deleteOnExit();
+                }
+            }
+        }
+        // The embedded server's accept loop never returns
+        System.exit(0);
+    }
+}
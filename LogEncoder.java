@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+// Encodes action log entries as JSON Lines straight into a byte buffer:
+//
+//   {"timestamp": "2024-05-01T12:00:00.123+02:00", "id": "alice", "action": "INCREASE", "amount": "5"}
+//
+// the same shape the log always had, with the id escaped so any id stays valid JSON.
+// Nothing is allocated per entry: strings are encoded char by char, and the date-time
+// up to the seconds is formatted once per second and then copied, only the
+// milliseconds are written each time. One encoder per thread, it is not thread-safe.
+public class LogEncoder {
+    private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.");
+    private static final DateTimeFormatter OFFSET = DateTimeFormatter.ofPattern("XXX");
+    private static final byte[] TIMESTAMP = ascii("{\"timestamp\": \"");
+    private static final byte[] ID = ascii("\", \"id\": \"");
+    private static final byte[] ACTION = ascii("\", \"action\": \"");
+    private static final byte[] AMOUNT = ascii("\", \"amount\": \"");
+    private static final byte[] END = ascii("\"}\n");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+    // The longest date-time, e.g. 2024-05-01T12:00:00.123+02:00
+    private static final int TIMESTAMP_LENGTH = 29;
+    // Everything but the id, action and amount
+    private static final int FIXED_LENGTH = TIMESTAMP.length + TIMESTAMP_LENGTH + ID.length + ACTION.length + AMOUNT.length + END.length;
+
+    private final ZoneId zone;
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] secondPrefix = new byte[0];
+    private byte[] offset = new byte[0];
+
+    public LogEncoder() {
+        this(ZoneId.systemDefault());
+    }
+
+    public LogEncoder(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Upper bound of the encoded length, to check the buffer has room first
+    public static int maxLength(String id, String action) {
+        return FIXED_LENGTH + 6 * id.length() + 6 * action.length() + 20;
+    }
+
+    // Writes one line, terminator included, at the buffer's position
+    public void encode(ByteBuffer out, long timestamp, String id, String action, long amount) {
+        out.put(TIMESTAMP);
+        timestamp(out, timestamp);
+        out.put(ID);
+        string(out, id);
+        out.put(ACTION);
+        string(out, action);
+        out.put(AMOUNT);
+        decimal(out, amount);
+        out.put(END);
+    }
+
+    private void timestamp(ByteBuffer out, long timestamp) {
+        long second = Math.floorDiv(timestamp, 1000);
+        if (second != cachedSecond) {
+            // Once a second, and the offset is redone with it in case daylight saving time began
+            ZonedDateTime time = Instant.ofEpochSecond(second).atZone(zone);
+            secondPrefix = ascii(SECONDS.format(time));
+            offset = ascii(OFFSET.format(time));
+            cachedSecond = second;
+        }
+        out.put(secondPrefix);
+        int millis = Math.floorMod(timestamp, 1000);
+        out.put((byte) ('0' + millis / 100)).put((byte) ('0' + millis / 10 % 10)).put((byte) ('0' + millis % 10));
+        out.put(offset);
+    }
+
+    // JSON string contents: quotes, backslashes and control characters escaped, the rest as UTF-8
+    static void string(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20) {
+                out.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                        .put(HEX[c >> 4]).put(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, as String.getBytes would
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    static void decimal(ByteBuffer out, long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                out.put(ascii(Long.toString(value)));
+                return;
+            }
+            out.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    // Reads the string value of "name": "..." from an encoded line, undoing the escapes;
+    // null if the line has no such field
+    static String field(String line, String name) {
+        String key = "\"" + name + "\": \"";
+        int i = line.indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for (i += key.length(); i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\' || i + 1 >= line.length()) {
+                value.append(c);
+                continue;
+            }
+            char escaped = line.charAt(++i);
+            switch (escaped) {
+                case 'u':
+                    if (i + 4 >= line.length()) {
+                        return null;
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    i += 4;
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                default:
+                    value.append(escaped);
+                    break;
+            }
+        }
+        return null;
+    }
+}
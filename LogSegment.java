@@ -0,0 +1,375 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// One file of the action log, <log file>.<sequence>. The segment is cut into blocks
+// of about BLOCK_BYTES at line boundaries, and a sparse index records for every block
+// where it is and the time range it covers, and for every client id the blocks it
+// occurs in. A query for one client therefore only reads the blocks that mention it.
+//
+// The index of the segment being written lives in memory. Once the segment is sealed
+// it is saved next to it as <segment>.idx; with compression every block becomes its
+// own gzip member in <segment>.gz, so a block can still be read on its own.
+class LogSegment {
+    static final int BLOCK_BYTES = 64 * 1024;
+    private static final int INDEX_MAGIC = 0x4C4F4749; // "LOGI"
+
+    final long sequence;
+    private final Path raw;
+    private final Path compressedFile;
+    private final Path indexFile;
+
+    // Guarded by lock: the writer adds to the index and compression swaps the block
+    // positions under the write lock, readers copy what they need under the read lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean compressed;
+    private int blockCount;
+    private long[] blockOffsets = new long[16];
+    private int[] blockLengths = new int[16];
+    private long[] blockFirst = new long[16];
+    private long[] blockLast = new long[16];
+    private final Map<String, int[]> clientBlocks = new HashMap<>();
+    private long first = Long.MAX_VALUE;
+    private long last = Long.MIN_VALUE;
+
+    // Bytes of the raw file the writer has completed, readers of the active segment stop there
+    private volatile long written;
+
+    LogSegment(Path base, long sequence) {
+        this.sequence = sequence;
+        this.raw = base.resolveSibling(base.getFileName() + String.format(".%06d", sequence));
+        this.compressedFile = raw.resolveSibling(raw.getFileName() + ".gz");
+        this.indexFile = raw.resolveSibling(raw.getFileName() + ".idx");
+    }
+
+    Path file() {
+        return raw;
+    }
+
+    boolean isSealed() {
+        return Files.exists(indexFile);
+    }
+
+    // Whether anything in the segment falls into [from, to]
+    boolean overlaps(long from, long to) {
+        lock.readLock().lock();
+        try {
+            return blockCount > 0 && first <= to && last >= from;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Indexes a line the writer is about to write at offset of the raw file
+    void add(String id, long timestamp, long offset, int length) {
+        lock.writeLock().lock();
+        try {
+            int block = blockCount - 1;
+            if (block < 0 || offset + length - blockOffsets[block] > BLOCK_BYTES) {
+                block = newBlock(offset, timestamp);
+            }
+            blockLengths[block] = (int) (offset + length - blockOffsets[block]);
+            blockFirst[block] = Math.min(blockFirst[block], timestamp);
+            blockLast[block] = Math.max(blockLast[block], timestamp);
+            first = Math.min(first, timestamp);
+            last = Math.max(last, timestamp);
+
+            int[] blocks = clientBlocks.get(id);
+            if (blocks == null) {
+                clientBlocks.put(id, new int[] {1, block});
+            } else if (blocks[blocks[0]] != block) {
+                // blocks[0] is the number of entries used
+                if (blocks[0] + 1 == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                    clientBlocks.put(id, blocks);
+                }
+                blocks[++blocks[0]] = block;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int newBlock(long offset, long timestamp) {
+        if (blockCount == blockOffsets.length) {
+            int size = blockCount * 2;
+            blockOffsets = Arrays.copyOf(blockOffsets, size);
+            blockLengths = Arrays.copyOf(blockLengths, size);
+            blockFirst = Arrays.copyOf(blockFirst, size);
+            blockLast = Arrays.copyOf(blockLast, size);
+        }
+        blockOffsets[blockCount] = offset;
+        blockFirst[blockCount] = timestamp;
+        blockLast[blockCount] = timestamp;
+        return blockCount++;
+    }
+
+    void setWritten(long bytes) {
+        written = bytes;
+    }
+
+    // Adds the client's entries within [from, to] to result, at most limit in total
+    void read(String id, long from, long to, int limit, List<String> result) throws IOException {
+        try {
+            readBlocks(id, from, to, limit, result);
+        } catch (NoSuchFileException e) {
+            // Compressed meanwhile, the positions are those of the .gz file now
+            readBlocks(id, from, to, limit, result);
+        }
+    }
+
+    private void readBlocks(String id, long from, long to, int limit, List<String> result) throws IOException {
+        // Positions are copied so the writer is not held up while the blocks are read
+        boolean packed;
+        long[] offsets;
+        int[] lengths;
+        int count = 0;
+        lock.readLock().lock();
+        try {
+            int[] blocks = clientBlocks.get(id);
+            if (blocks == null) {
+                return;
+            }
+            packed = compressed;
+            offsets = new long[blocks[0]];
+            lengths = new int[blocks[0]];
+            for (int i = 1; i <= blocks[0]; i++) {
+                int block = blocks[i];
+                if (blockLast[block] >= from && blockFirst[block] <= to) {
+                    offsets[count] = blockOffsets[block];
+                    // The writer may still be in the middle of the last block
+                    lengths[count++] = packed ? blockLengths[block] : (int) Math.max(0, Math.min(blockLengths[block], written - blockOffsets[block]));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (count == 0) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(packed ? compressedFile : raw, StandardOpenOption.READ)) {
+            for (int i = 0; i < count && result.size() < limit; i++) {
+                ByteBuffer buffer = ByteBuffer.allocate(lengths[i]);
+                while (buffer.hasRemaining() && channel.read(buffer, offsets[i] + buffer.position()) >= 0) {
+                }
+                byte[] bytes = buffer.array();
+                if (packed) {
+                    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes, 0, buffer.position()))) {
+                        bytes = in.readAllBytes();
+                    }
+                }
+                collect(bytes, id, from, to, limit, result);
+            }
+        }
+    }
+
+    private static void collect(byte[] bytes, String id, long from, long to, int limit, List<String> result) {
+        int start = 0;
+        for (int i = 0; i < bytes.length && result.size() < limit; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            long timestamp = timestamp(line);
+            if (timestamp >= from && timestamp <= to && id.equals(LogEncoder.field(line, "id"))) {
+                result.add(line);
+            }
+        }
+    }
+
+    // Epoch milliseconds of a log line, Long.MIN_VALUE for lines without a full timestamp
+    static long timestamp(String line) {
+        String value = LogEncoder.field(line, "timestamp");
+        try {
+            return value == null ? Long.MIN_VALUE : OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // Rebuilds the index of a raw segment left behind by a crash
+    void scan() throws IOException {
+        long offset = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(raw))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0) {
+                line.write(b);
+                if (b != '\n') {
+                    continue;
+                }
+                String text = line.toString(StandardCharsets.UTF_8);
+                String id = LogEncoder.field(text, "id");
+                long timestamp = timestamp(text);
+                if (id != null && timestamp != Long.MIN_VALUE) {
+                    add(id, timestamp, offset, line.size());
+                }
+                offset += line.size();
+                line.reset();
+            }
+            // A torn last line is left out of the index
+        }
+        written = offset;
+    }
+
+    // Saves the index; from then on the segment is only read
+    void seal() throws IOException {
+        lock.readLock().lock();
+        try {
+            writeIndex();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Rewrites the raw file block by block as gzip members, then switches readers over
+    void compress() throws IOException {
+        long[] offsets;
+        int[] lengths;
+        lock.readLock().lock();
+        try {
+            if (compressed) {
+                return;
+            }
+            offsets = Arrays.copyOf(blockOffsets, blockCount);
+            lengths = Arrays.copyOf(blockLengths, blockCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Path temporary = compressedFile.resolveSibling(compressedFile.getFileName() + ".tmp");
+        long[] packedOffsets = new long[offsets.length];
+        int[] packedLengths = new int[offsets.length];
+        try (FileChannel in = FileChannel.open(raw, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                ByteBuffer block = ByteBuffer.allocate(lengths[i]);
+                while (block.hasRemaining() && in.read(block, offsets[i] + block.position()) >= 0) {
+                }
+                ByteArrayOutputStream packed = new ByteArrayOutputStream(lengths[i] / 4);
+                try (OutputStream gzip = new GZIPOutputStream(packed)) {
+                    gzip.write(block.array(), 0, block.position());
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(packed.toByteArray());
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                packedOffsets[i] = position;
+                packedLengths[i] = packed.size();
+                position += packed.size();
+            }
+            out.force(true);
+        }
+        Files.move(temporary, compressedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        lock.writeLock().lock();
+        try {
+            System.arraycopy(packedOffsets, 0, blockOffsets, 0, packedOffsets.length);
+            System.arraycopy(packedLengths, 0, blockLengths, 0, packedLengths.length);
+            compressed = true;
+            // The index is what says which file is current, the raw one goes only after it
+            writeIndex();
+            Files.deleteIfExists(raw);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        Path temporary = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeBoolean(compressed);
+            out.writeLong(written);
+            out.writeInt(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                out.writeLong(blockOffsets[i]);
+                out.writeInt(blockLengths[i]);
+                out.writeLong(blockFirst[i]);
+                out.writeLong(blockLast[i]);
+            }
+            out.writeInt(clientBlocks.size());
+            for (Map.Entry<String, int[]> e : clientBlocks.entrySet()) {
+                int[] blocks = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeInt(blocks[0]);
+                for (int i = 1; i <= blocks[0]; i++) {
+                    out.writeInt(blocks[i]);
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the index of a sealed segment and removes what an interrupted compression left
+    void load() throws IOException {
+        lock.writeLock().lock();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("Not a log index: " + indexFile);
+            }
+            compressed = in.readBoolean();
+            written = in.readLong();
+            int blocks = in.readInt();
+            blockOffsets = new long[Math.max(1, blocks)];
+            blockLengths = new int[Math.max(1, blocks)];
+            blockFirst = new long[Math.max(1, blocks)];
+            blockLast = new long[Math.max(1, blocks)];
+            for (int i = 0; i < blocks; i++) {
+                blockOffsets[i] = in.readLong();
+                blockLengths[i] = in.readInt();
+                blockFirst[i] = in.readLong();
+                blockLast[i] = in.readLong();
+                first = Math.min(first, blockFirst[i]);
+                last = Math.max(last, blockLast[i]);
+            }
+            blockCount = blocks;
+            int clients = in.readInt();
+            for (int c = 0; c < clients; c++) {
+                String id = in.readUTF();
+                int count = in.readInt();
+                int[] list = new int[count + 1];
+                list[0] = count;
+                for (int i = 1; i <= count; i++) {
+                    list[i] = in.readInt();
+                }
+                clientBlocks.put(id, list);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (compressed) {
+            Files.deleteIfExists(raw);
+        } else {
+            Files.deleteIfExists(compressedFile);
+        }
+    }
+}
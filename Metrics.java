@@ -0,0 +1,175 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters, gauges and latency histograms of the running server, readable over
+// JMX and with the STATS command. Everything recorded on the request path is a
+// LongAdder or a striped LatencyHistogram, so recording never takes a lock.
+// Gauges are read from their owners (thread pools, the action log) only when
+// somebody asks. Latencies are in microseconds.
+public class Metrics implements MetricsMXBean {
+    public enum Command { REGISTER, INCREASE, DECREASE, LOGOUT, BINARY, STATS, HISTORY, PING, WATCH, SUMMARY, CLUSTER, REPLICATION, UNKNOWN }
+
+    private static final int STRIPES = Runtime.getRuntime().availableProcessors();
+
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LatencyHistogram[] commands = new LatencyHistogram[Command.values().length];
+    private final LatencyHistogram handshakes = new LatencyHistogram(STRIPES);
+
+    // Registered while the server starts, read by snapshot()
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+    public Metrics() {
+        for (Command command : Command.values()) {
+            commands[command.ordinal()] = new LatencyHistogram(STRIPES);
+            histograms.put("command." + command.name().toLowerCase(), commands[command.ordinal()]);
+        }
+        histograms.put("handshake", handshakes);
+    }
+
+    public void connectionOpened() {
+        activeConnections.increment();
+        totalConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    // A counter operation refused by the per id rate limit
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    public void handshake(boolean resumed, long startNanos) {
+        (resumed ? resumedHandshakes : fullHandshakes).increment();
+        handshakes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    // Time from reading a command to its reply
+    public void command(Command command, long startNanos) {
+        commands[command.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public synchronized void histogram(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("Server:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Unable to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("connections.active", activeConnections.sum());
+        snapshot.put("connections.total", totalConnections.sum());
+        snapshot.put("connections.rejected", rejectedConnections.sum());
+        snapshot.put("handshakes.full", fullHandshakes.sum());
+        snapshot.put("handshakes.resumed", resumedHandshakes.sum());
+        snapshot.put("commands.rateLimited", rateLimited.sum());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            snapshot.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram histogram = e.getValue();
+            if (histogram.count() == 0) {
+                snapshot.put(e.getKey() + ".count", 0L);
+                continue;
+            }
+            snapshot.put(e.getKey() + ".count", histogram.count());
+            snapshot.put(e.getKey() + ".p50", histogram.percentile(50));
+            snapshot.put(e.getKey() + ".p99", histogram.percentile(99));
+            snapshot.put(e.getKey() + ".p999", histogram.percentile(99.9));
+            snapshot.put(e.getKey() + ".max", histogram.max());
+        }
+        return snapshot;
+    }
+
+    // The STATS reply: one line of name=value pairs
+    public String format() {
+        StringBuilder line = new StringBuilder("STATS");
+        for (Map.Entry<String, Long> e : getSnapshot().entrySet()) {
+            line.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return line.toString();
+    }
+
+    private synchronized long gaugeValue(String name) {
+        LongSupplier gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.getAsLong();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    @Override
+    public long getRateLimitedCommands() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    @Override
+    public long getSessionPoolActive() {
+        return gaugeValue("sessions.poolActive");
+    }
+
+    @Override
+    public long getSessionPoolQueued() {
+        return gaugeValue("sessions.poolQueued");
+    }
+
+    @Override
+    public long getBcryptPoolQueued() {
+        return gaugeValue("bcrypt.queued");
+    }
+
+    @Override
+    public long getLogQueued() {
+        return gaugeValue("log.queued");
+    }
+}
@@ -0,0 +1,27 @@
+import java.util.Map;
+
+// Management interface of Metrics, registered as Server:type=Metrics
+public interface MetricsMXBean {
+    long getActiveConnections();
+
+    long getTotalConnections();
+
+    long getRejectedConnections();
+
+    long getRateLimitedCommands();
+
+    long getFullHandshakes();
+
+    long getResumedHandshakes();
+
+    long getSessionPoolActive();
+
+    long getSessionPoolQueued();
+
+    long getBcryptPoolQueued();
+
+    long getLogQueued();
+
+    // Every counter and gauge plus count, p50, p99, p99.9 and max (microseconds) of every histogram
+    Map<String, Long> getSnapshot();
+}
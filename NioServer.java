@@ -0,0 +1,545 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+// Non-blocking server mode (SERVER_MODE=nio). Connections are spread over a few
+// selector threads and TLS is done with an SSLEngine per connection, so an idle
+// client costs a few buffers instead of a pool thread.
+public class NioServer {
+    private final Server server;
+    private final SSLContext sslContext;
+    private final EventLoop[] loops;
+    // Handshake tasks (key exchange, signatures) are CPU heavy, keep them off the event loops
+    private final ThreadPoolExecutor handshakeExecutor;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    public NioServer(Server server, SSLContext sslContext, int loopCount) {
+        this.server = server;
+        this.sslContext = sslContext;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        this.handshakeExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "nio-handshake");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Accepts connections on the calling thread until stop() is called
+    public void start(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), Server.intProperty("SERVER_NIO_BACKLOG", 1024));
+        System.out.println("Server started on port " + port + " (nio, " + loops.length + " event loops)");
+
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+                System.err.println("Error accepting connection: " + e.getMessage());
+                continue;
+            }
+            // Admitted or turned away before the handshake is even queued
+            InetAddress address;
+            try {
+                address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            } catch (IOException e) {
+                closeQuietly(channel);
+                continue;
+            }
+            if (!server.admission.tryAdmit(address)) {
+                server.metrics.connectionRejected();
+                server.admission.reject(channel);
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            loops[next].register(channel, address);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // Handshake tasks waiting for a thread
+    public long handshakeQueued() {
+        return handshakeExecutor.getQueue().size();
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.close();
+            }
+        }
+        handshakeExecutor.shutdownNow();
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel, InetAddress address) {
+            execute(() -> {
+                Connection connection = null;
+                try {
+                    connection = new Connection(this, channel, address);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.engine.beginHandshake();
+                    connection.pump();
+                } catch (IOException e) {
+                    System.err.println("Error registering client connection.");
+                    if (connection != null) {
+                        connection.disconnect();
+                    } else {
+                        server.admission.release(address);
+                        closeQuietly(channel);
+                    }
+                }
+            });
+        }
+
+        // Runs the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.disconnect();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.err.println("Event loop stopped: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final InetAddress address;
+        private final SSLEngine engine;
+        private final Server.Session session;
+        private SelectionKey key;
+
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private ByteBuffer netOut;
+        // Plain text replies waiting to be encrypted
+        private ByteBuffer appOut = ByteBuffer.allocate(1024);
+
+        private boolean tasksRunning;
+        private boolean closeRequested;
+        private boolean closed;
+        private boolean handshakeDone;
+        // Input is left unprocessed while a login waits for the bcrypt pool
+        private boolean suspended;
+        private final long handshakeStart = System.currentTimeMillis();
+        private final long handshakeStartNanos = System.nanoTime();
+        private final TimerWheel.Timeout inactivity;
+        private final TimerWheel.Timeout sessionDeadline;
+
+        Connection(EventLoop loop, SocketChannel channel, InetAddress address) {
+            this.loop = loop;
+            this.channel = channel;
+            this.address = address;
+            this.engine = sslContext.createSSLEngine();
+            this.engine.setUseClientMode(false);
+            int packetSize = engine.getSession().getPacketBufferSize();
+            this.netIn = ByteBuffer.allocate(packetSize);
+            this.netOut = ByteBuffer.allocate(packetSize);
+            this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+
+            this.session = server.new Session() {
+                @Override
+                void write(byte[] buf, int off, int len) {
+                    if (appOut.remaining() < len) {
+                        appOut = grow(appOut, appOut.position() + len);
+                    }
+                    appOut.put(buf, off, len);
+                }
+
+                @Override
+                void close() {
+                    closeRequested = true;
+                }
+
+                @Override
+                void deliver(Runnable task) {
+                    loop.execute(() -> {
+                        if (closed) {
+                            return;
+                        }
+                        task.run();
+                        try {
+                            pump();
+                        } catch (IOException | RuntimeException e) {
+                            disconnect();
+                        }
+                    });
+                }
+
+                // Already asynchronous, the loop writes it
+                @Override
+                void push(Runnable task) {
+                    deliver(task);
+                }
+
+                @Override
+                <T> void await(CompletableFuture<T> result, Consumer<T> then) {
+                    if (result.isDone()) {
+                        super.await(result, then);
+                        return;
+                    }
+                    suspended = true;
+                    key.interestOps(0);
+                    result.whenComplete((value, error) -> loop.execute(() -> {
+                        suspended = false;
+                        super.await(result, then);
+                        if (closed) {
+                            // Dropped while waiting, give back the session slot just taken
+                            handleLogout();
+                            return;
+                        }
+                        try {
+                            // Commands that arrived meanwhile
+                            processLines();
+                            pump();
+                        } catch (IOException | RuntimeException e) {
+                            disconnect();
+                        }
+                    }));
+                }
+            };
+            this.inactivity = server.timers.newTimeout(() -> loop.execute(() -> expire("inactivity")), Server.INACTIVITY_TIMEOUT_MS);
+            this.sessionDeadline = server.sessionTimeoutMs > 0
+                    ? server.timers.newTimeout(() -> loop.execute(() -> expire("session timeout")), server.sessionTimeoutMs)
+                    : null;
+            server.metrics.connectionOpened();
+        }
+
+        // Runs on the loop thread once the timer wheel fires
+        private void expire(String reason) {
+            if (closed) {
+                return;
+            }
+            session.expire(reason);
+            try {
+                pump();
+            } catch (IOException | RuntimeException e) {
+                disconnect();
+            }
+        }
+
+        void onReadable() throws IOException {
+            int n = channel.read(netIn);
+            if (n < 0) {
+                // Treat as a "LOGOUT"
+                session.handleLogout();
+                disconnect();
+                return;
+            }
+            pump();
+        }
+
+        void onWritable() throws IOException {
+            flush();
+            if (netOut.position() == 0) {
+                pump();
+            }
+        }
+
+        // Drives the engine until it needs more input from the network or waits for delegated tasks
+        void pump() throws IOException {
+            boolean progress = true;
+            while (progress && !closed && !tasksRunning) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    break;
+                }
+                progress = false;
+                if (status == HandshakeStatus.NEED_WRAP || appOut.position() > 0) {
+                    progress = wrap();
+                }
+                if (status != HandshakeStatus.NEED_WRAP && unwrap()) {
+                    progress = true;
+                }
+            }
+            flush();
+            if (closeRequested && appOut.position() == 0 && netOut.position() == 0) {
+                finishClose();
+            }
+        }
+
+        private boolean wrap() throws IOException {
+            appOut.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(appOut, netOut);
+            } finally {
+                appOut.compact();
+            }
+            checkHandshakeFinished(result);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    // Push out what is already encrypted before growing the buffer
+                    flush();
+                    if (netOut.position() > 0) {
+                        netOut = grow(netOut, netOut.capacity() + engine.getSession().getPacketBufferSize());
+                    }
+                    return true;
+                case CLOSED:
+                    closeRequested = true;
+                    return false;
+                default:
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+
+        private boolean unwrap() throws IOException {
+            if (netIn.position() == 0) {
+                return false;
+            }
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            checkHandshakeFinished(result);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                case CLOSED:
+                    session.handleLogout();
+                    closeRequested = true;
+                    return false;
+                default:
+                    if (result.bytesProduced() > 0) {
+                        processLines();
+                    }
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+
+        private void checkHandshakeFinished(SSLEngineResult result) {
+            if (!handshakeDone && result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                handshakeDone = true;
+                server.recordHandshake(engine.getSession(), handshakeStart, handshakeStartNanos);
+            }
+        }
+
+        private void runDelegatedTasks() {
+            tasksRunning = true;
+            key.interestOps(0);
+            handshakeExecutor.execute(() -> {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                loop.execute(() -> {
+                    tasksRunning = false;
+                    if (closed) {
+                        return;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    try {
+                        pump();
+                    } catch (IOException | RuntimeException e) {
+                        disconnect();
+                    }
+                });
+            });
+        }
+
+        // Splits the decrypted input into lines (or frames in binary mode) and hands them
+        // to the protocol straight from the buffer
+        private void processLines() {
+            appIn.flip();
+            byte[] data = appIn.array();
+            int start = appIn.position();
+            int limit = appIn.limit();
+            while (start < limit && !closeRequested && !suspended) {
+                boolean open;
+                if (session.binary) {
+                    int length = CommandParser.frameLength(data, start, limit);
+                    if (length > CommandParser.MAX_LINE) {
+                        System.err.println("Frame too large, closing connection.");
+                        closeRequested = true;
+                        break;
+                    }
+                    int prefix = length < 0 ? 0 : CommandParser.varintSize(length);
+                    if (length < 0 || limit - start < prefix + length) {
+                        break;
+                    }
+                    inactivity.reset(Server.INACTIVITY_TIMEOUT_MS);
+                    open = session.handleFrame(data, start + prefix, length);
+                    start += prefix + length;
+                } else {
+                    int newline = CommandParser.indexOf(data, start, limit, (byte) '\n');
+                    if (newline < 0) {
+                        break;
+                    }
+                    int end = newline > start && data[newline - 1] == '\r' ? newline - 1 : newline;
+                    inactivity.reset(Server.INACTIVITY_TIMEOUT_MS);
+                    open = session.handleLine(data, start, end - start);
+                    start = newline + 1;
+                }
+                if (!open) {
+                    closeRequested = true;
+                }
+            }
+            appIn.position(start);
+            if (closeRequested) {
+                appIn.clear();
+                return;
+            }
+            appIn.compact();
+            if (!suspended && appIn.position() > CommandParser.MAX_LINE) {
+                System.err.println("Line too long, closing connection.");
+                closeRequested = true;
+                appIn.clear();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (netOut.position() > 0) {
+                netOut.flip();
+                channel.write(netOut);
+                netOut.compact();
+            }
+            if (closed) {
+                return;
+            }
+            // Stop reading while the peer is not draining its replies
+            if (netOut.position() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(tasksRunning || suspended ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        // Sends close_notify on a best effort basis and releases the channel
+        void finishClose() {
+            if (closed) {
+                return;
+            }
+            try {
+                engine.closeOutbound();
+                while (!engine.isOutboundDone() && wrap()) {
+                    // keep wrapping the close_notify
+                }
+                if (netOut.position() > 0) {
+                    netOut.flip();
+                    channel.write(netOut);
+                }
+            } catch (IOException | RuntimeException e) {
+                // The peer is going away anyway
+            }
+            disconnect();
+        }
+
+        void disconnect() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            session.disconnected();
+            server.admission.release(address);
+            server.metrics.connectionClosed();
+            inactivity.cancel();
+            if (sessionDeadline != null) {
+                sessionDeadline.cancel();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(minCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing client channel.");
+        }
+    }
+}
@@ -0,0 +1,462 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+// The registry as open addressing tables in direct memory, so millions of
+// registered ids cost the garbage collector nothing but the tables' buffers.
+// Each id is a fixed 128 byte slot:
+//
+//   int state | int hash | long counter | int instances | byte idLen | byte passwordLen | 2 unused |
+//   password (60 bytes, a bcrypt hash) | id (44 bytes, UTF-8)
+//
+// The ids are spread over 64 segments with linear probing, each behind a StampedLock:
+// lookups and counter updates share the read lock and change the counter with
+// compare-and-set, inserts, removals and session counts take the write lock, and
+// so does growing a segment when it is three quarters full. Ids longer than a slot
+// holds live in an on-heap registry, legacy password hashes longer than bcrypt's
+// in a side map. Slots are placed by SipHash-1-3 of the id under a key drawn at
+// startup, so clients cannot pick ids that collide and make the probes run long.
+public class OffHeapClientRegistry implements ClientRegistry {
+    private static final int SEGMENT_BITS = 6;
+    private static final int SLOT = 128;
+    private static final int STATE = 0;
+    private static final int HASH = 4;
+    private static final int COUNTER = 8;
+    private static final int INSTANCES = 16;
+    private static final int ID_LENGTH = 20;
+    private static final int PASSWORD_LENGTH = 21;
+    private static final int PASSWORD = 24;
+    private static final int ID = 84;
+    static final int MAX_PASSWORD = ID - PASSWORD;
+    static final int MAX_ID = SLOT - ID;
+    // Password length of an entry whose hash is in longPasswords
+    private static final int ELSEWHERE = 0xFF;
+
+    private static final int EMPTY = 0;
+    private static final int USED = 1;
+    private static final int REMOVED = 2;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    // The hash key, new in every process as the tables are
+    private static final long KEY0;
+    private static final long KEY1;
+
+    static {
+        SecureRandom random = new SecureRandom();
+        KEY0 = random.nextLong();
+        KEY1 = random.nextLong();
+    }
+
+    private final CounterStore counters;
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    // Ids too long for a slot
+    private final ClientRegistry overflow;
+    private final Map<String, String> longPasswords = new ConcurrentHashMap<>();
+
+    // capacity is the number of ids expected, the segments grow beyond it as needed
+    public OffHeapClientRegistry(CounterStore counters, int capacity) {
+        this.counters = counters;
+        this.overflow = new ClientRegistry.OnHeap(counters);
+        int perSegment = Integer.highestOneBit(Math.max(16, capacity / segments.length * 4 / 3 * 2 - 1));
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    private final class Segment {
+        final StampedLock lock = new StampedLock();
+        ByteBuffer table;
+        int mask;
+        // Slots ever used, removed ones included, under the write lock
+        int occupied;
+        volatile int size;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            table = ByteBuffer.allocateDirect(capacity * SLOT).order(ByteOrder.nativeOrder());
+            mask = capacity - 1;
+            occupied = 0;
+        }
+
+        // Offset of the id's slot, -1 when it is not here. Under either lock.
+        int find(String id, int hash) {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int slot = i * SLOT;
+                int state = table.getInt(slot + STATE);
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state == USED && table.getInt(slot + HASH) == hash && sameId(table, slot, id)) {
+                    return slot;
+                }
+            }
+        }
+
+        // Offset of a slot for an id that is not here, under the write lock
+        int free(int hash) {
+            if (occupied + 1 > (mask + 1) / 4 * 3) {
+                rehash();
+            }
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int slot = i * SLOT;
+                int state = table.getInt(slot + STATE);
+                if (state == EMPTY) {
+                    occupied++;
+                    return slot;
+                }
+                if (state == REMOVED) {
+                    return slot;
+                }
+            }
+        }
+
+        // Copies the entries into a table twice as large, or as large when most slots
+        // were only left behind by removals
+        private void rehash() {
+            ByteBuffer old = table;
+            int capacity = mask + 1;
+            allocate(size >= capacity / 4 ? capacity * 2 : capacity);
+            for (int slot = 0; slot < old.capacity(); slot += SLOT) {
+                if (old.getInt(slot + STATE) == USED) {
+                    table.put(free(old.getInt(slot + HASH)), old, slot, SLOT);
+                }
+            }
+        }
+    }
+
+    // SipHash-1-3 over the id's chars, four to a word, folded to 32 bits
+    static int hash(String id) {
+        long v0 = KEY0 ^ 0x736f6d6570736575L;
+        long v1 = KEY1 ^ 0x646f72616e646f6dL;
+        long v2 = KEY0 ^ 0x6c7967656e657261L;
+        long v3 = KEY1 ^ 0x7465646279746573L;
+        int length = id.length();
+        int words = length / 4;
+        // One round per word, the last one holding the chars left over and the length,
+        // then three finalization rounds
+        for (int step = 0; step < words + 4; step++) {
+            long m = 0;
+            if (step < words) {
+                int i = step * 4;
+                m = id.charAt(i) | (long) id.charAt(i + 1) << 16 | (long) id.charAt(i + 2) << 32 | (long) id.charAt(i + 3) << 48;
+            } else if (step == words) {
+                m = (long) length << 48;
+                for (int i = words * 4, shift = 0; i < length; i++, shift += 16) {
+                    m |= (long) id.charAt(i) << shift;
+                }
+            } else if (step == words + 1) {
+                v2 ^= 0xff;
+            }
+            v3 ^= m;
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, 13) ^ v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, 16) ^ v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, 21) ^ v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, 17) ^ v2;
+            v2 = Long.rotateLeft(v2, 32);
+            v0 ^= m;
+        }
+        long h = v0 ^ v1 ^ v2 ^ v3;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private Segment segment(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    // Whether the id fits a slot, its UTF-8 length as String.getBytes encodes it
+    private static boolean fits(String id) {
+        if (id.length() > MAX_ID) {
+            return false;
+        }
+        int length = 0;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < id.length() && Character.isLowSurrogate(id.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length <= MAX_ID;
+    }
+
+    // Compares the stored id without encoding the one looked up, unless it is not ASCII
+    private static boolean sameId(ByteBuffer table, int slot, String id) {
+        int length = table.get(slot + ID_LENGTH) & 0xFF;
+        if (id.length() > length) {
+            return false;
+        }
+        int pos = slot + ID;
+        int end = pos + length;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c >= 0x80) {
+                return Arrays.equals(bytes(table, slot + ID, length), id.getBytes(StandardCharsets.UTF_8));
+            }
+            if (pos == end || table.get(pos++) != c) {
+                return false;
+            }
+        }
+        return pos == end;
+    }
+
+    private static byte[] bytes(ByteBuffer table, int offset, int length) {
+        byte[] bytes = new byte[length];
+        table.get(offset, bytes);
+        return bytes;
+    }
+
+    private String password(ByteBuffer table, int slot, String id) {
+        int length = table.get(slot + PASSWORD_LENGTH) & 0xFF;
+        if (length == ELSEWHERE) {
+            return longPasswords.get(id);
+        }
+        return new String(bytes(table, slot + PASSWORD, length), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String password(String id) {
+        if (!fits(id)) {
+            return overflow.password(id);
+        }
+        int hash = hash(id);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.find(id, hash);
+            return slot < 0 ? null : password(segment.table, slot, id);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean insert(String id, String password, long counter, int instances, Runnable then) {
+        if (!fits(id)) {
+            return overflow.insert(id, password, counter, instances, then);
+        }
+        int hash = hash(id);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            if (segment.find(id, hash) >= 0) {
+                return false;
+            }
+            if (then != null) {
+                then.run();
+            }
+            int slot = segment.free(hash);
+            ByteBuffer table = segment.table;
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+            table.putInt(slot + HASH, hash);
+            table.putLong(slot + COUNTER, counter);
+            table.putInt(slot + INSTANCES, instances);
+            table.put(slot + ID_LENGTH, (byte) idBytes.length);
+            table.put(slot + ID, idBytes);
+            if (passwordBytes.length > MAX_PASSWORD) {
+                longPasswords.put(id, password);
+                table.put(slot + PASSWORD_LENGTH, (byte) ELSEWHERE);
+            } else {
+                table.put(slot + PASSWORD_LENGTH, (byte) passwordBytes.length);
+                table.put(slot + PASSWORD, passwordBytes);
+            }
+            table.putInt(slot + STATE, USED);
+            segment.size++;
+            return true;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int acquire(String id, String password, int max, Runnable then) {
+        if (!fits(id)) {
+            return overflow.acquire(id, password, max, then);
+        }
+        int hash = hash(id);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.find(id, hash);
+            if (slot < 0 || !password.equals(password(segment.table, slot, id))) {
+                return ABSENT;
+            }
+            int instances = segment.table.getInt(slot + INSTANCES);
+            if (instances >= max) {
+                return FULL;
+            }
+            segment.table.putInt(slot + INSTANCES, instances + 1);
+            then.run();
+            return ACQUIRED;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int release(String id, Runnable removed) {
+        if (!fits(id)) {
+            return overflow.release(id, removed);
+        }
+        int hash = hash(id);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.find(id, hash);
+            if (slot < 0) {
+                return 0;
+            }
+            int remaining = Math.max(0, segment.table.getInt(slot + INSTANCES) - 1);
+            segment.table.putInt(slot + INSTANCES, remaining);
+            if (remaining == 0) {
+                removed.run();
+                remove(segment, slot, id);
+            }
+            return remaining;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    private void remove(Segment segment, int slot, String id) {
+        if ((segment.table.get(slot + PASSWORD_LENGTH) & 0xFF) == ELSEWHERE) {
+            longPasswords.remove(id);
+        }
+        segment.table.putInt(slot + STATE, REMOVED);
+        segment.size--;
+    }
+
+    @Override
+    public Registered removeIfIdle(String id) {
+        if (!fits(id)) {
+            return overflow.removeIfIdle(id);
+        }
+        int hash = hash(id);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.find(id, hash);
+            if (slot < 0 || segment.table.getInt(slot + INSTANCES) > 0) {
+                return null;
+            }
+            Registered removed = new Registered(id, password(segment.table, slot, id), segment.table.getLong(slot + COUNTER), 0);
+            remove(segment, slot, id);
+            return removed;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean applyDelta(String id, long delta, Applied then) {
+        if (!fits(id)) {
+            return overflow.applyDelta(id, delta, then);
+        }
+        int hash = hash(id);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.find(id, hash);
+            if (slot < 0) {
+                return false;
+            }
+            ByteBuffer table = segment.table;
+            long current;
+            long next;
+            do {
+                current = (long) LONG.getVolatile(table, slot + COUNTER);
+                next = counters.add(current, delta);
+            } while (!LONG.weakCompareAndSet(table, slot + COUNTER, current, next));
+            // Removal waits for the write lock, so then runs while the id is still registered
+            then.applied(current, next);
+            return true;
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long counter(String id) {
+        if (!fits(id)) {
+            return overflow.counter(id);
+        }
+        int hash = hash(id);
+        Segment segment = segment(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.find(id, hash);
+            return slot < 0 ? 0 : (long) LONG.getVolatile(segment.table, slot + COUNTER);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = overflow.size();
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    // Direct memory taken by the tables
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            bytes += segment.table.capacity();
+            segment.lock.unlockRead(stamp);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void forEach(Consumer<Registered> action) {
+        for (Segment segment : segments) {
+            // Copied under the lock and visited after, so the action may change the registry
+            List<Registered> entries = new ArrayList<>();
+            long stamp = segment.lock.readLock();
+            try {
+                ByteBuffer table = segment.table;
+                for (int slot = 0; slot < table.capacity(); slot += SLOT) {
+                    if (table.getInt(slot + STATE) == USED) {
+                        String id = new String(bytes(table, slot + ID, table.get(slot + ID_LENGTH) & 0xFF), StandardCharsets.UTF_8);
+                        entries.add(new Registered(id, password(table, slot, id),
+                                (long) LONG.getVolatile(table, slot + COUNTER), table.getInt(slot + INSTANCES)));
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+            entries.forEach(action);
+        }
+        overflow.forEach(action);
+    }
+}
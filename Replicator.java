@@ -0,0 +1,415 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+// Hot standby: a primary with SERVER_STANDBY=host:port streams its journal to a second
+// Server started with SERVER_ROLE=standby, which applies every record to its own
+// registry and journal. The standby has its keystore loaded and its port open, it only
+// refuses REGISTER until it is promoted: by "PROMOTE <SERVER_REPLICATION_SECRET>", or on
+// its own SERVER_PROMOTE_AFTER_MS after the primary's connection ended.
+//
+// The primary connects like a client: "REPLICATE <SERVER_REPLICATION_SECRET>", BINARY,
+// then the client table as SNAPSHOT frames and from then on every journal record as it
+// is appended. Records appended while a batch is being written are sent together as
+// the next batch of REPLICATE frames. The standby answers the snapshot and each REPLICATE
+// frame with the last sequence number it applied, an empty one is sent as heartbeat when idle.
+//
+// SERVER_REPLICATION_ACK=async (default) answers clients without waiting for the
+// standby. With sync, INCREASE, DECREASE and new registrations are answered once the
+// standby applied them, or after SERVER_REPLICATION_TIMEOUT_MS; while no standby is
+// caught up nothing waits, so losing it does not stop the primary.
+public class Replicator implements Journal.Listener {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int RETRY_MS = 1000;
+    private static final int HEARTBEAT_MS = 1000;
+    // How long an async batch waits for more records before it is sent
+    private static final int LINGER_MS = 2;
+    // Bytes of records per frame, below CommandParser.MAX_LINE with the frame header
+    private static final int CHUNK = 8000;
+    // Records waiting for the standby before it is considered lost and resynchronized
+    private static final int MAX_PENDING = 64 * 1024 * 1024;
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final String host;
+    private final int port;
+    private final byte[] secret;
+    private final boolean sync;
+    private final long timeoutMs;
+    private final SSLSocketFactory socketFactory;
+    private final Journal journal;
+
+    // Guarded by this: records appended but not yet written to the standby
+    private byte[] pending = new byte[64 * 1024];
+    private int pendingLength;
+    private boolean following;
+    private boolean overflowed;
+    private long appendedSeq;
+
+    // Set once the standby acknowledged anything on the current connection
+    private volatile boolean live;
+    private volatile long acknowledgedSeq;
+    // Set when a reply stopped waiting for the standby, until the standby acknowledged that record
+    private volatile long behindSeq;
+    // Replies held back in sync mode, by the sequence number they wait for
+    private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> waiters = new ConcurrentSkipListMap<>();
+
+    Replicator(String host, int port, String secret, boolean sync, long timeoutMs, SSLSocketFactory socketFactory, Journal journal) {
+        this.host = host;
+        this.port = port;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.sync = sync;
+        this.timeoutMs = timeoutMs;
+        this.socketFactory = socketFactory;
+        this.journal = journal;
+    }
+
+    // null unless SERVER_STANDBY is set
+    static Replicator fromProperties(Journal journal) throws Exception {
+        String standby = System.getProperty("SERVER_STANDBY");
+        if (standby == null || standby.isBlank()) {
+            return null;
+        }
+        if (journal == null) {
+            throw new IllegalArgumentException("SERVER_STANDBY needs the journal, SERVER_JOURNAL is off");
+        }
+        standby = standby.trim();
+        int colon = standby.lastIndexOf(':');
+        int port;
+        try {
+            port = Integer.parseInt(standby.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid SERVER_STANDBY: " + standby);
+        }
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid SERVER_STANDBY: " + standby);
+        }
+        String ack = System.getProperty("SERVER_REPLICATION_ACK", "async").trim();
+        boolean sync = ack.equalsIgnoreCase("sync");
+        if (!sync && !ack.equalsIgnoreCase("async")) {
+            System.err.println("Invalid value for SERVER_REPLICATION_ACK, using async");
+        }
+        // The standby is verified like any client verifies the server
+        SSLSocketFactory socketFactory = Client.sslContext(System.getProperty("SERVER_REPLICATION_TRUSTSTORE", "client.truststore"),
+                System.getProperty("SERVER_TRUSTSTORE_PASSWORD")).getSocketFactory();
+        return new Replicator(standby.substring(0, colon), port, secret(), sync,
+                Server.intProperty("SERVER_REPLICATION_TIMEOUT_MS", 1000), socketFactory, journal);
+    }
+
+    // SERVER_REPLICATION_SECRET, shared by the primary and its standby
+    static String secret() {
+        String secret = System.getProperty("SERVER_REPLICATION_SECRET");
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("SERVER_REPLICATION_SECRET is required for replication");
+        }
+        return secret;
+    }
+
+    // Keeps a connection to the standby open from now on, reconnecting after a failure
+    void start() {
+        Thread.ofVirtual().name("replicator").start(() -> {
+            // Retries fail the same way until something changes, report each failure once
+            String reported = null;
+            while (true) {
+                try {
+                    replicate();
+                } catch (IOException e) {
+                    String failure = "Replication to " + host + ":" + port + " stopped: " + e.getMessage();
+                    if (!failure.equals(reported)) {
+                        System.err.println(failure);
+                    }
+                    reported = live ? null : failure;
+                }
+                disconnected();
+                try {
+                    Thread.sleep(RETRY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    boolean sync() {
+        return sync;
+    }
+
+    public boolean connected() {
+        return live;
+    }
+
+    // Journal records the standby has not acknowledged yet
+    public synchronized long lag() {
+        return live ? appendedSeq - acknowledgedSeq : 0;
+    }
+
+    // Completes once the standby applied the record seq, after the timeout, or right away
+    // while no standby is caught up. Never completes exceptionally.
+    CompletableFuture<Void> replicated(long seq) {
+        if (!live || behindSeq != 0 || seq <= acknowledgedSeq) {
+            return DONE;
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiters.put(seq, waiter);
+        // The acknowledgement or the disconnect may have passed while it was added
+        if (!live || seq <= acknowledgedSeq) {
+            waiters.remove(seq);
+            return DONE;
+        }
+        waiter.completeOnTimeout(null, timeoutMs, TimeUnit.MILLISECONDS);
+        // Still waiting when the timeout completed it
+        waiter.thenRun(() -> {
+            if (waiters.remove(seq, waiter)) {
+                fellBehind(seq);
+            }
+        });
+        return waiter;
+    }
+
+    private synchronized void fellBehind(long seq) {
+        if (behindSeq == 0 && live) {
+            behindSeq = seq;
+            System.err.println("Standby " + host + ":" + port + " did not acknowledge within " + timeoutMs
+                    + " ms, replies do not wait for it until it caught up");
+        }
+    }
+
+    @Override
+    public synchronized void appended(ByteBuffer segment, int offset, int length, long seq) {
+        if (!following || overflowed) {
+            return;
+        }
+        if (pendingLength + length > MAX_PENDING) {
+            // Dropped and started over with a snapshot
+            overflowed = true;
+            notifyAll();
+            return;
+        }
+        if (pendingLength + length > pending.length) {
+            byte[] bigger = new byte[Math.max(pending.length * 2, pendingLength + length)];
+            System.arraycopy(pending, 0, bigger, 0, pendingLength);
+            pending = bigger;
+        }
+        segment.get(offset, pending, pendingLength, length);
+        if (pendingLength == 0) {
+            notifyAll();
+        }
+        pendingLength += length;
+        appendedSeq = seq;
+    }
+
+    private void replicate() throws IOException {
+        try (SSLSocket socket = connect()) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = socket.getInputStream();
+            out.write(("REPLICATE " + new String(secret, StandardCharsets.UTF_8) + "\nBINARY\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            for (int i = 0; i < 2; i++) {
+                String reply = Cluster.readLine(in);
+                if (reply == null || !reply.startsWith("ACK")) {
+                    throw new IOException("Standby refused replication: " + reply);
+                }
+            }
+
+            // Records from here on are buffered while the snapshot of everything before is sent
+            synchronized (this) {
+                pendingLength = 0;
+                overflowed = false;
+                following = true;
+            }
+            long firstSeq = journal.follow(this);
+            sendSnapshot(out, firstSeq);
+            System.out.println("Replicating to standby " + host + ":" + port);
+
+            Thread.ofVirtual().name("replicator-acks").start(() -> readAcknowledgements(socket, in));
+            stream(out);
+        }
+    }
+
+    private SSLSocket connect() throws IOException {
+        Socket plain = new Socket();
+        try {
+            plain.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            plain.setTcpNoDelay(true);
+            SSLSocket socket = (SSLSocket) socketFactory.createSocket(plain, host, port, true);
+            socket.startHandshake();
+            return socket;
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+    }
+
+    // Every id as a REGISTER and a DELTA record, then the empty frame with the snapshot's last seq
+    private void sendSnapshot(OutputStream out, long firstSeq) throws IOException {
+        SnapshotWriter writer = new SnapshotWriter(out);
+        long lastSeq;
+        try {
+            // Writes from the journal's background thread, which waits meanwhile
+            lastSeq = journal.snapshot(firstSeq, (id, password, counter) -> {
+                byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+                writer.add(Journal.REGISTER, idBytes, 0, password.getBytes(StandardCharsets.UTF_8));
+                if (counter != 0) {
+                    writer.add(Journal.DELTA, idBytes, counter, null);
+                }
+                writer.clients++;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.send();
+        writer.frame.reset().beginFrame(CommandParser.OP_SNAPSHOT, lastSeq).endFrame();
+        out.write(writer.frame.array(), 0, writer.frame.length());
+        out.flush();
+        System.out.println("Sent the standby a snapshot of " + writer.clients + " clients at seq " + lastSeq);
+    }
+
+    // Encodes snapshot records and writes them as SNAPSHOT frames of at most CHUNK bytes
+    private static class SnapshotWriter {
+        final OutputStream out;
+        final CommandParser.ReplyBuffer frame = new CommandParser.ReplyBuffer();
+        final CRC32C crc = new CRC32C();
+        ByteBuffer records = ByteBuffer.allocate(64 * 1024);
+        int clients;
+
+        SnapshotWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void add(byte op, byte[] idBytes, long amount, byte[] data) {
+            int size = Journal.encodedSize(idBytes, data);
+            if (records.remaining() < size) {
+                send();
+                if (records.capacity() < size) {
+                    records = ByteBuffer.allocate(size);
+                }
+            }
+            // The standby ignores the sequence numbers inside a snapshot
+            Journal.encode(records, 0, op, idBytes, amount, data, crc);
+        }
+
+        void send() {
+            records.flip();
+            try {
+                while (records.hasRemaining()) {
+                    int length = Math.min(CHUNK, records.remaining());
+                    frame.reset().beginFrame(CommandParser.OP_SNAPSHOT, 0).put(records.array(), records.position(), length).endFrame();
+                    out.write(frame.array(), 0, frame.length());
+                    records.position(records.position() + length);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            records.clear();
+        }
+    }
+
+    // Writes the buffered records as they come, swapping buffers so appending never waits for the socket
+    private void stream(OutputStream out) throws IOException {
+        CommandParser.ReplyBuffer frame = new CommandParser.ReplyBuffer();
+        byte[] batch = new byte[pending.length];
+        while (true) {
+            int length;
+            synchronized (this) {
+                try {
+                    if (pendingLength == 0 && !overflowed) {
+                        wait(HEARTBEAT_MS);
+                    }
+                    // Nobody waits for an async batch, let a few more records join it
+                    if (!sync && pendingLength > 0 && pendingLength < CHUNK && !overflowed) {
+                        wait(LINGER_MS);
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                if (overflowed) {
+                    throw new IOException("Standby is not keeping up, more than " + MAX_PENDING + " bytes pending");
+                }
+                byte[] filled = pending;
+                pending = batch.length >= pending.length ? batch : new byte[pending.length];
+                batch = filled;
+                length = pendingLength;
+                pendingLength = 0;
+            }
+            if (length == 0) {
+                // Heartbeat, the standby answers it like any other
+                frame.reset().beginFrame(CommandParser.OP_REPLICATE, 0).endFrame();
+                out.write(frame.array(), 0, frame.length());
+            }
+            for (int off = 0; off < length; off += CHUNK) {
+                frame.reset().beginFrame(CommandParser.OP_REPLICATE, 0).put(batch, off, Math.min(CHUNK, length - off)).endFrame();
+                out.write(frame.array(), 0, frame.length());
+            }
+            out.flush();
+        }
+    }
+
+    // COUNTER frames with the last seq the standby applied; ends by closing the socket
+    private void readAcknowledgements(SSLSocket socket, InputStream in) {
+        CommandParser.InputReader reader = new CommandParser.InputReader(in);
+        CommandParser.Cursor cursor = new CommandParser.Cursor();
+        try {
+            while (reader.readFrame()) {
+                cursor.wrap(reader.buffer(), reader.messageStart, reader.messageLength);
+                byte opcode = cursor.opcode();
+                cursor.varint();
+                if (opcode != CommandParser.OP_COUNTER) {
+                    System.err.println("Standby refused replication: " + cursor.string());
+                    break;
+                }
+                long value = cursor.varint();
+                acknowledged((value >>> 1) ^ -(value & 1));
+            }
+        } catch (IOException e) {
+            // Closed from either side
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Gone already
+        }
+    }
+
+    private void acknowledged(long seq) {
+        acknowledgedSeq = seq;
+        live = true;
+        if (behindSeq != 0 && seq >= behindSeq) {
+            behindSeq = 0;
+            System.out.println("Standby " + host + ":" + port + " caught up at seq " + seq);
+        }
+        Map.Entry<Long, CompletableFuture<Void>> first;
+        while ((first = waiters.firstEntry()) != null && first.getKey() <= seq) {
+            if (waiters.remove(first.getKey(), first.getValue())) {
+                first.getValue().complete(null);
+            }
+        }
+    }
+
+    // Stops following the journal and releases every reply that waits for the standby
+    private void disconnected() {
+        journal.unfollow(this);
+        synchronized (this) {
+            following = false;
+            pendingLength = 0;
+        }
+        live = false;
+        behindSeq = 0;
+        Map.Entry<Long, CompletableFuture<Void>> first;
+        while ((first = waiters.pollFirstEntry()) != null) {
+            first.getValue().complete(null);
+        }
+    }
+}
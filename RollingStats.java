@@ -0,0 +1,231 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counter operations over the last minute, hour and day, maintained as they
+// happen in rings of buckets. Recording adds to the bucket of the current second
+// in a ring of 60, two atomic adds. When that ring comes round to a bucket again,
+// the seconds before are first folded into rings of 60 minutes and 24 hours,
+// which keep the busiest second of each bucket for the peak rate. A summary
+// reads at most the 144 buckets, however busy the server was. The windows are
+// to the bucket, e.g. the last hour is the current minute and the 59 before it.
+//
+// Like LatencyHistogram, stats recorded from many threads can be striped, readers
+// sum the stripes. About 2 KB with one stripe, the coarser rings add 3.5 KB once the
+// first second is folded, so stats only recorded to within a minute never allocate them.
+public class RollingStats {
+    private static final int OPS = 0;
+    private static final int INCREASED = 1;
+    private static final int DECREASED = 2;
+    private static final int CELLS = 3;
+    private static final int SECONDS = 60;
+
+    private final int stripeMask;
+    // Second each bucket counts, shared by the stripes
+    private final AtomicLongArray stamps = new AtomicLongArray(SECONDS);
+    private final AtomicLongArray[] seconds;
+    // Guarded by this: seconds up to folded are in the coarser rings as well
+    private long folded = Long.MIN_VALUE;
+    private final Ring minutes = new Ring("hour", 60, 60);
+    private final Ring hours = new Ring("day", 3600, 24);
+
+    // Finished seconds added up per minute or hour, guarded by the RollingStats. The
+    // buckets are allocated by the first add.
+    private static final class Ring {
+        final String name;
+        final long widthSeconds;
+        final int size;
+        long[] stamps;
+        long[] cells;
+        long[] peaks;
+
+        Ring(String name, long widthSeconds, int size) {
+            this.name = name;
+            this.widthSeconds = widthSeconds;
+            this.size = size;
+        }
+
+        void add(long second, long[] counts) {
+            if (stamps == null) {
+                stamps = new long[size];
+                Arrays.fill(stamps, Long.MIN_VALUE);
+                cells = new long[size * CELLS];
+                peaks = new long[size];
+            }
+            long period = Math.floorDiv(second, widthSeconds);
+            int index = Math.floorMod(period, size);
+            if (stamps[index] > period) {
+                // Older than the ring reaches
+                return;
+            }
+            if (stamps[index] < period) {
+                Arrays.fill(cells, index * CELLS, index * CELLS + CELLS, 0);
+                peaks[index] = 0;
+                stamps[index] = period;
+            }
+            for (int cell = 0; cell < CELLS; cell++) {
+                cells[index * CELLS + cell] += counts[cell];
+            }
+            peaks[index] = Math.max(peaks[index], counts[OPS]);
+        }
+
+        // Whether second falls into the window of this ring that ends at now
+        boolean covers(long second, long now) {
+            long period = Math.floorDiv(second, widthSeconds);
+            long current = Math.floorDiv(now, widthSeconds);
+            return period <= current && period > current - size;
+        }
+
+        // Adds the buckets of the window ending at now to totals (ops, increased, decreased, peak)
+        void sum(long now, long[] totals) {
+            if (stamps == null) {
+                return;
+            }
+            long current = Math.floorDiv(now, widthSeconds);
+            for (int i = 0; i < size; i++) {
+                if (stamps[i] <= current && stamps[i] > current - size) {
+                    for (int cell = 0; cell < CELLS; cell++) {
+                        totals[cell] += cells[i * CELLS + cell];
+                    }
+                    totals[CELLS] = Math.max(totals[CELLS], peaks[i]);
+                }
+            }
+        }
+    }
+
+    public RollingStats() {
+        this(1);
+    }
+
+    // stripes is rounded up to a power of two
+    public RollingStats(int stripes) {
+        int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripeMask = size - 1;
+        this.seconds = new AtomicLongArray[size];
+        for (int i = 0; i < size; i++) {
+            seconds[i] = new AtomicLongArray(SECONDS * CELLS);
+        }
+        for (int i = 0; i < SECONDS; i++) {
+            stamps.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    // Monotonic milliseconds, the windows are relative to now so wall clock changes do not matter
+    public static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    // Whether the last operation recorded has left the day window, so a summary would be all zero
+    public boolean idle(long now) {
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < SECONDS; i++) {
+            last = Math.max(last, stamps.get(i));
+        }
+        return last == Long.MIN_VALUE || !hours.covers(last, Math.floorDiv(now, 1000));
+    }
+
+    // One INCREASE or DECREASE by amount at now
+    public void record(long now, boolean increase, long amount) {
+        long second = Math.floorDiv(now, 1000);
+        int index = Math.floorMod(second, SECONDS);
+        if (stamps.get(index) < second) {
+            reuse(index, second);
+        }
+        // A thread that read the time just before the bucket moved on counts into the newer second
+        AtomicLongArray stripe = seconds[(int) Thread.currentThread().threadId() & stripeMask];
+        stripe.getAndIncrement(index * CELLS + OPS);
+        stripe.getAndAdd(index * CELLS + (increase ? INCREASED : DECREASED), amount);
+    }
+
+    private synchronized void reuse(int index, long second) {
+        if (stamps.get(index) >= second) {
+            return;
+        }
+        // Everything but the last second, which may still be getting late additions
+        fold(second - 2);
+        for (AtomicLongArray stripe : seconds) {
+            for (int cell = 0; cell < CELLS; cell++) {
+                stripe.set(index * CELLS + cell, 0);
+            }
+        }
+        stamps.set(index, second);
+    }
+
+    private void fold(long upTo) {
+        if (upTo <= folded) {
+            return;
+        }
+        long[] counts = new long[CELLS];
+        for (int i = 0; i < SECONDS; i++) {
+            long stamp = stamps.get(i);
+            if (stamp > folded && stamp <= upTo) {
+                count(i, counts);
+                minutes.add(stamp, counts);
+                hours.add(stamp, counts);
+            }
+        }
+        folded = upTo;
+    }
+
+    // Sums the stripes of one second's bucket
+    private void count(int index, long[] counts) {
+        Arrays.fill(counts, 0);
+        for (AtomicLongArray stripe : seconds) {
+            for (int cell = 0; cell < CELLS; cell++) {
+                counts[cell] += stripe.get(index * CELLS + cell);
+            }
+        }
+    }
+
+    // "minute.ops=.. minute.increased=.. minute.decreased=.. minute.net=.. minute.peakRate=.."
+    // and the same for hour and day; peakRate is the most operations in one second
+    public synchronized String format(long now) {
+        long second = Math.floorDiv(now, 1000);
+        // ops, increased, decreased, peak
+        long[] minute = new long[CELLS + 1];
+        long[] hour = new long[CELLS + 1];
+        long[] day = new long[CELLS + 1];
+        minutes.sum(second, hour);
+        hours.sum(second, day);
+        long[] counts = new long[CELLS];
+        for (int i = 0; i < SECONDS; i++) {
+            long stamp = stamps.get(i);
+            if (stamp > second) {
+                continue;
+            }
+            count(i, counts);
+            if (stamp > second - SECONDS) {
+                add(minute, counts);
+            }
+            // Not folded yet, so not in the coarser rings
+            if (stamp > folded) {
+                if (minutes.covers(stamp, second)) {
+                    add(hour, counts);
+                }
+                if (hours.covers(stamp, second)) {
+                    add(day, counts);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        append(sb, "minute", minute);
+        append(sb.append(' '), minutes.name, hour);
+        append(sb.append(' '), hours.name, day);
+        return sb.toString();
+    }
+
+    private static void add(long[] totals, long[] counts) {
+        for (int cell = 0; cell < CELLS; cell++) {
+            totals[cell] += counts[cell];
+        }
+        totals[CELLS] = Math.max(totals[CELLS], counts[OPS]);
+    }
+
+    private static void append(StringBuilder sb, String window, long[] totals) {
+        sb.append(window).append(".ops=").append(totals[OPS])
+                .append(' ').append(window).append(".increased=").append(totals[INCREASED])
+                .append(' ').append(window).append(".decreased=").append(totals[DECREASED])
+                .append(' ').append(window).append(".net=").append(totals[INCREASED] - totals[DECREASED])
+                .append(' ').append(window).append(".peakRate=").append(totals[CELLS]);
+    }
+}
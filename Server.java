@@ -1,340 +1,1661 @@
-import java.io.*;
-import java.net.SocketException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import javax.net.ssl.*;
-import java.security.KeyStore;
-import java.security.SecureRandom;
-import java.time.*;
-import java.time.format.DateTimeFormatter;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-
-
-
-public class Server {
-    private SSLServerSocket serverSocket;
-    // Solve thread vulnerability
-    private static ThreadPoolExecutor threadPool;
-    private static final int maxThreads = 10;
-
-
-    private Map<String, ClientInfo> clients = new ConcurrentHashMap<>();
-    private static final DateTimeFormatter Formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
-
-        // Method to load environment variables from .env file
-        public static void loadEnv() {
-            try (BufferedReader br = new BufferedReader(new FileReader(".env"))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    String[] parts = line.split("=", 2);
-                    if (parts.length == 2 && parts[0].startsWith("SERVER_")) {
-                        // Set the property in the system
-                        System.setProperty(parts[0], parts[1]);
-
-                    }
-                }
-            } catch (IOException e) {
-                 System.err.println("Error loading environment variables");
-            }
-        }
-
-    public void start(int port) {
-        try {
-            // Load the server keystore
-            KeyStore keyStore = KeyStore.getInstance("JKS");
-            try (FileInputStream keyStoreStream = new FileInputStream("server.keystore")) {
-                char[] keyStorePassword = System.getProperty("SERVER_KEYSTORE_PASSWORD").toCharArray();
-                keyStore.load(keyStoreStream, keyStorePassword);
-            }
-
-            // Create key manager
-            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-            char[] trustStorePassword = System.getProperty("SERVER_TRUSTSTORE_PASSWORD").toCharArray();
-            keyManagerFactory.init(keyStore, trustStorePassword);
-
-            // Initialize SSL context
-            SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
-            sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
-
-            // Create SSL server socket
-            SSLServerSocketFactory ServerSocketFactory = sslContext.getServerSocketFactory();
-            SSLServerSocket serverSocket = (SSLServerSocket) ServerSocketFactory.createServerSocket(port);
-
-            // Solved thread vulnerability: Initialize the thread pool with a fixed size
-            threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxThreads);
-    
-            System.out.println("Server started on port " + port);
-            
-            while (true){
-                SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                threadPool.submit(new ClientHandler(clientSocket));
-
-                if (threadPool.getActiveCount() >= maxThreads) {
-                    System.out.println("Max threads reached. Rejecting connection.");
-                    try (OutputStream os = clientSocket.getOutputStream();
-                        PrintWriter writer = new PrintWriter(os, true)) {
-                        writer.println("Server is busy. Please try again later.");
-                    }
-                    clientSocket.close(); 
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Unable to connect to the server."); // Please check IP address
-        } catch (Exception e) {
-            System.err.println("Unable to connect to the server.");
-        }
-    }
-
-    public void stop() {
-        try {
-            serverSocket.close();
-            if (threadPool != null) {
-                threadPool.shutdown();
-            }
-        } catch (IOException e) {
-            System.err.println("An error occurred while stopping the server.");
-        } finally {
-            System.clearProperty("SERVER_TRUSTORE_PASSWORD");
-            System.clearProperty("SERVER_KEYSTORE_PASSWORD");
-        }
-    }
-    private class ClientInfo {
-        String id;
-        String password;
-        int counter;
-        int instancesCount;
-
-        ClientInfo(String id, String password, int counter, int instancesCount) {
-            this.id = id;
-            this.password = password;
-            this.counter = counter;
-            this.instancesCount = 1;
-        }
-    }
-
-    private class ClientHandler extends Thread {
-        private SSLSocket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String clientId;
-
-        public ClientHandler(SSLSocket socket) {
-            this.clientSocket = socket;
-        }
-
-        public void run() {
-            AtomicReference<ScheduledExecutorService> inactivityScheduler = new AtomicReference<>(Executors.newSingleThreadScheduledExecutor());
-            ScheduledExecutorService sessionTimeoutScheduler = Executors.newSingleThreadScheduledExecutor();
-            try {
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-                // Handle client inactivity
-                Runnable inactivityTask = () -> {
-                    out.println("Session closed due to inactivity for the client: " + clientId);
-                    handleLogout(out);
-                    try {
-                        clientSocket.close();
-                    } catch (IOException e) {
-                        System.err.println("Error closing client socket due to inactivity.");
-                    }
-                    inactivityScheduler.get().shutdown();
-                };
-
-                String message;
-                while ((message = in.readLine()) != "LOGOUT") {
-
-                    inactivityScheduler.get().shutdownNow();
-                    inactivityScheduler.set(Executors.newSingleThreadScheduledExecutor());
-                    inactivityScheduler.get().schedule(inactivityTask, 5, TimeUnit.MINUTES);
-
-                    String[] parts = message.split(" ");
-                    String command = parts[0];
-
-                    switch (command) {
-                        case "REGISTER":
-                            handleRegister(out, parts);
-                            break;
-                        case "INCREASE":
-                        case "DECREASE":
-                            handleCounterOperation(out, command, parts);
-                            break;
-                        case "LOGOUT":
-                            handleLogout(out);
-                            inactivityScheduler.get().shutdown();
-                            sessionTimeoutScheduler.shutdown();
-                            return;
-                        default:
-                            out.println("ERROR: Unknown command.");
-                            break;
-                    }
-                }
-            } catch (SocketException e) {
-                System.err.println("Client disconnected abruptly: " + clientId);
-                handleLogout(out); // Treat as a "LOGOUT"
-            } catch (IOException e) {
-                System.err.println("Error occurred while handling client.");
-            } finally {
-                try {
-                    if (clientSocket != null) clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing client socket");
-                }
-                inactivityScheduler.get().shutdown();
-                sessionTimeoutScheduler.shutdown();
-            }
-        }
-
-        private void handleRegister(PrintWriter out, String[] parts) {
-            if (parts.length < 3) {
-                out.println("ERROR: Invalid registration format.");
-                return;
-            }
-
-            clientId = parts[1];
-            String password = parts[2];
-
-            // Check if the client ID is already registered
-            if (clients.containsKey(clientId)) {
-                ClientInfo existingClient = clients.get(clientId);
-
-                // Verify if the password matches
-                if (existingClient.password.equals(password)) {
-                    existingClient.instancesCount += 1;
-
-                    if (existingClient.instancesCount >= 4) {
-                        System.out.println("ERROR: Maximum concurrent logins reached for client " + clientId);
-                        out.println("Use one of your open sessions. ");
-                        clientId = null;
-                        existingClient.instancesCount -= 1; // Decrement instance count
-                        try {
-                            in.close();
-                            clientSocket.close();
-                        } catch (IOException e) {
-                            System.err.println("Error closing client socket after rejecting login.");
-                        }
-                    } else {
-                        out.println("ACK: Login successful.");
-                    }
-
-                } else {
-                    System.out.println("ERROR: ID already in use with a different password.");
-                }
-            } else {
-                // Register new client if ID is not in use
-                clients.put(clientId, new ClientInfo(clientId, password, 0, 1));
-                out.println("ACK: Registration successful.");
-            }
-        }
-
-        private void handleCounterOperation(PrintWriter out, String command, String[] parts) {
-            if (clientId == null) {
-                out.println("ERROR: Client not registered.");
-                return;
-            }
-    
-            int amount;
-            // Check for strings
-            try{
-                amount = Integer.parseInt(parts[1]);
-            } catch (NumberFormatException e) {
-                out.println("ERROR: Invalid format.");
-                return;
-            }
-            // Check for overflow + no negative numbeers
-            if (amount < 0 || amount > Integer.MAX_VALUE) {
-                throw new IllegalArgumentException("Invalid Amount");
-            }
-   
-            ClientInfo clientInfo = clients.get(clientId);
-            if (command.equals("INCREASE")) {
-                clientInfo.counter += amount;
-            } else { // DECREASE
-                clientInfo.counter -= amount;
-            }
-            out.println("Counter " + command.toLowerCase()+"d to " + clientInfo.counter);
-
-            generatelogfile(clientId, command, amount);
-        }
-
-        private void handleLogout(PrintWriter out) {
-            try{
-                if (clientId != null) {
-                    ClientInfo clientInfo = clients.get(clientId);
-
-                    if (clientInfo != null) {
-                        clientInfo.instancesCount -= 1; // Decrement instance count
-
-                        if (clientInfo.instancesCount <= 0) {
-                            // If no more instances, remove from clients map and delete JSON file
-                            clients.remove(clientId);
-                            System.out.println("Client information deleted");
-                            out.println("Session successfully terminated.");
-                        } else {
-                            out.println("ACK: Logout successful, remaining instances: " + clientInfo.instancesCount);
-                        }
-                    }
-                    clientId = null;
-                    try {
-                        in.close();
-                        clientSocket.close();
-                    } catch (IOException e) {
-                        System.err.println("Error closing client socket during logout.");
-                    }
-                }
-            }
-            catch(NullPointerException e)
-            {
-                System.err.println("Error: NullPointerException occurred during logout.");
-            }
-        }
-
-    }
-
-
-    private static void generatelogfile(String clientId, String action, int amount){
-        final String LOG_FILE = "logfile.JSON"; 
-
-        // Create JSON object
-        Map<String, Object> logEntry = new LinkedHashMap<>();
-        logEntry.put("timestamp",LocalDateTime.now().format(Formatter));
-        logEntry.put("id", clientId);
-        logEntry.put("action", action);
-        logEntry.put("amount", amount);
-
-        // Convert Map to JSON String
-        String jsonBuilder = mapToJsonString(logEntry);
-
-        try (FileWriter fileWriter = new FileWriter(LOG_FILE, true)) {
-            fileWriter.write(jsonBuilder + "\n");    
-
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
-        }
-
-    }
-
-    // Method to convert a Map to JSON-like string
-    public static String mapToJsonString(Map<String, Object> map) {
-        StringBuilder jsonBuilder = new StringBuilder("{");
-        for (Map.Entry<String, Object> entry : map.entrySet()) {
-            jsonBuilder.append("\"").append(entry.getKey()).append("\": ")
-                       .append("\"").append(entry.getValue()).append("\", ");
-        }
-        jsonBuilder.delete(jsonBuilder.length() - 2, jsonBuilder.length()); // remove trailing comma
-        jsonBuilder.append("}");
-        return jsonBuilder.toString();
-    }
-
-    public static void main(String args[]) {
-        // Load environment variables from .env file
-        loadEnv();
-        Server server = new Server();
-        server.start(5001);
-    }
-}
\ No newline at end of file
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.net.ssl.*;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+
+
+public class Server {
+    // Plain sockets, TLS is layered on after admission so rejecting costs no handshake
+    private ServerSocket serverSocket;
+    // Solve thread vulnerability
+    private static ThreadPoolExecutor threadPool;
+    private static final int maxThreads = 10;
+    // Runs the ClientHandlers: the fixed pool above, or a virtual thread per session (SERVER_EXECUTOR=virtual)
+    private static ExecutorService sessionExecutor;
+    // Bounds the CPU heavy parts of virtual thread sessions, null when running on the fixed pool
+    private static Semaphore cpuPermits;
+    // Used instead of the accept loop when SERVER_MODE=nio
+    private NioServer nioServer;
+
+    static final long INACTIVITY_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    // Inactivity and absolute session deadlines of every connection, one thread for the whole server
+    TimerWheel timers;
+    // Absolute session lifetime, 0 disables it
+    long sessionTimeoutMs;
+    final Metrics metrics = new Metrics();
+    // Connection limits and per id rate limits, null until start()
+    AdmissionController admission;
+    // Ids allowed to use STATS, REBALANCE and SUMMARY of other ids (SERVER_ADMIN_IDS, comma separated)
+    private Set<String> adminIds = Set.of();
+    // Shard membership when SERVER_CLUSTER_NODES is set, null for a single server
+    Cluster cluster;
+    // Streams the journal to a standby when SERVER_STANDBY is set (see Replicator)
+    private Replicator replicator;
+    // SERVER_ROLE=standby: only applies what the primary replicates until promoted
+    private volatile boolean standby;
+    private byte[] replicationSecret;
+    // Last of the primary's journal records applied here
+    private volatile long replicatedSeq;
+    // Guarded by this: the primary's connection, and the automatic promotion armed once it ended
+    private Session primary;
+    private TimerWheel.Timeout promotion;
+    private int promoteAfterMs;
+
+
+    private final CounterStore counters = new CounterStore(overflowPolicy());
+    // Every registered id, on the heap or off it (SERVER_REGISTRY)
+    private final ClientRegistry registry = ClientRegistry.fromProperties(counters);
+    // What the sessions of an id share, for the ids with sessions open: added by the first, removed by the last
+    private final Map<String, ClientInfo> clients = new ConcurrentHashMap<>();
+    // Operations of all clients over the last minute, hour and day
+    private final RollingStats summary = new RollingStats(Runtime.getRuntime().availableProcessors());
+    // The same per id, whether or not it has sessions open, for up to summaryClients ids. Ids
+    // without sessions and without operations in the last day make room for new ones.
+    private final Map<String, RollingStats> clientStats = new ConcurrentHashMap<>();
+    private int summaryClients = 10000;
+    // Stands in for ids without operations, never recorded to
+    private static final RollingStats NO_OPERATIONS = new RollingStats();
+    private final AtomicLong clientStatsSwept = new AtomicLong(Long.MIN_VALUE);
+    // Concurrent sessions allowed per id
+    private static final int MAX_INSTANCES = 3;
+    private static final int REGISTERED = 0;
+    private static final int LOGGED_IN = 1;
+    private static final int WRONG_PASSWORD = 2;
+    private static final int TOO_MANY_SESSIONS = 3;
+    // The entry changed while the password was hashed or verified
+    private static final int RETRY = 4;
+    // bcrypt hashes of the clients' passwords, checked off the session threads
+    private CredentialStore credentials;
+    // Write-ahead journal of the clients map, null when SERVER_JOURNAL=off
+    private Journal journal;
+    // Written asynchronously so a reply never waits for the log file
+    private static ActionLog actionLog;
+    // Most entries one HISTORY reply carries
+    private int historyLimit = 1000;
+    // Writes WATCH pushes of the blocking sessions, so the session that changed a counter never waits for them
+    private final ExecutorService pushExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+        // Method to load environment variables from .env file
+        public static void loadEnv() {
+            try (BufferedReader br = new BufferedReader(new FileReader(".env"))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("=", 2);
+                    if (parts.length == 2 && parts[0].startsWith("SERVER_")) {
+                        // Set the property in the system
+                        System.setProperty(parts[0], parts[1]);
+
+                    }
+                }
+            } catch (IOException e) {
+                 System.err.println("Error loading environment variables");
+            }
+        }
+
+    // Reads a numeric SERVER_ setting, falling back to the default when missing or malformed
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    interface IOAction {
+        void run() throws IOException;
+    }
+
+    // Runs CPU heavy work under the CPU permits so thousands of virtual threads cannot all compete for the cores
+    static void cpuBound(IOAction action) throws IOException {
+        if (cpuPermits == null) {
+            action.run();
+            return;
+        }
+        cpuPermits.acquireUninterruptibly();
+        try {
+            action.run();
+        } finally {
+            cpuPermits.release();
+        }
+    }
+
+    static ActionLog.FsyncPolicy fsyncPolicy() {
+        String value = System.getProperty("SERVER_LOG_FSYNC", "interval");
+        try {
+            return ActionLog.FsyncPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value for SERVER_LOG_FSYNC, using interval");
+            return ActionLog.FsyncPolicy.INTERVAL;
+        }
+    }
+
+    // A HISTORY bound: epoch milliseconds, an ISO date-time with or without offset (server
+    // time zone), or a date, which as the upper bound includes the whole day.
+    // CommandParser.INVALID for anything else.
+    static long parseTime(String value, boolean end) {
+        try {
+            if (value.chars().allMatch(Character::isDigit)) {
+                return Long.parseLong(value);
+            }
+            if (value.length() == 10) {
+                LocalDate date = LocalDate.parse(value);
+                ZonedDateTime start = (end ? date.plusDays(1) : date).atStartOfDay(ZoneId.systemDefault());
+                return start.toInstant().toEpochMilli() - (end ? 1 : 0);
+            }
+            TemporalAccessor time = DateTimeFormatter.ISO_DATE_TIME.parseBest(value, OffsetDateTime::from, LocalDateTime::from);
+            if (time instanceof OffsetDateTime offsetTime) {
+                return offsetTime.toInstant().toEpochMilli();
+            }
+            return ((LocalDateTime) time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException | NumberFormatException e) {
+            return CommandParser.INVALID;
+        }
+    }
+
+    static CounterStore.OverflowPolicy overflowPolicy() {
+        String value = System.getProperty("SERVER_COUNTER_OVERFLOW", "reject");
+        try {
+            return CounterStore.OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value for SERVER_COUNTER_OVERFLOW, using reject");
+            return CounterStore.OverflowPolicy.REJECT;
+        }
+    }
+
+    SSLContext createSSLContext() throws Exception {
+        // Load the server keystore
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (FileInputStream keyStoreStream = new FileInputStream(System.getProperty("SERVER_KEYSTORE", "server.keystore"))) {
+            char[] keyStorePassword = System.getProperty("SERVER_KEYSTORE_PASSWORD").toCharArray();
+            keyStore.load(keyStoreStream, keyStorePassword);
+        }
+
+        // Create key manager
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+        char[] trustStorePassword = System.getProperty("SERVER_TRUSTSTORE_PASSWORD").toCharArray();
+        keyManagerFactory.init(keyStore, trustStorePassword);
+
+        // Session tickets let clients resume without the server keeping per-session state,
+        // the switch has to be set before the first SSLContext is created
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                String.valueOf(!"off".equalsIgnoreCase(System.getProperty("SERVER_TLS_TICKETS", "on"))));
+
+        // Initialize SSL context
+        SSLContext sslContext = SSLContext.getInstance("TLSv1.3");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
+
+        // Resumable sessions spare reconnecting clients the certificate signature of a full handshake
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(intProperty("SERVER_TLS_SESSION_CACHE", 20480));
+        sessions.setSessionTimeout(intProperty("SERVER_TLS_SESSION_TIMEOUT_SEC", 86400));
+        return sslContext;
+    }
+
+    // Counts full and resumed handshakes and their duration. A resumed session keeps the
+    // creation time of the session it was resumed from, which is older than the handshake.
+    void recordHandshake(SSLSession session, long handshakeStart, long handshakeStartNanos) {
+        metrics.handshake(session.getCreationTime() < handshakeStart, handshakeStartNanos);
+    }
+
+    public void start(int port) {
+        try {
+            SSLContext sslContext = createSSLContext();
+
+            int cost = intProperty("SERVER_BCRYPT_COST", 10);
+            if (cost < 4 || cost > 30) {
+                System.err.println("Invalid value for SERVER_BCRYPT_COST, using 10");
+                cost = 10;
+            }
+            credentials = new CredentialStore(cost,
+                    intProperty("SERVER_BCRYPT_THREADS", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                    intProperty("SERVER_BCRYPT_QUEUE", 256),
+                    TimeUnit.SECONDS.toMillis(intProperty("SERVER_AUTH_CACHE_TTL_SEC", 30)),
+                    intProperty("SERVER_AUTH_CACHE_SIZE", 10000));
+            System.out.println("bcrypt cost " + cost + ": " + credentials.calibrate() + " ms per login");
+
+            adminIds = Set.of(System.getProperty("SERVER_ADMIN_IDS", "").split("\\s*,\\s*"));
+            metrics.gauge("bcrypt.active", credentials::active);
+            metrics.gauge("bcrypt.queued", credentials::queued);
+            metrics.registerMBean();
+
+            actionLog = new ActionLog(System.getProperty("SERVER_LOG_FILE", "logfile.JSON"), intProperty("SERVER_LOG_BUFFER", 8192), fsyncPolicy(),
+                    intProperty("SERVER_LOG_FSYNC_INTERVAL_MS", 1000),
+                    intProperty("SERVER_LOG_SEGMENT_MB", 64) * 1024L * 1024,
+                    TimeUnit.MINUTES.toMillis(intProperty("SERVER_LOG_ROTATE_MINUTES", 60)),
+                    !"off".equalsIgnoreCase(System.getProperty("SERVER_LOG_COMPRESS", "on")));
+            historyLimit = intProperty("SERVER_HISTORY_LIMIT", 1000);
+            // 2 to 5.5 KB per id kept (RollingStats), up to about 55 MB at the default
+            summaryClients = intProperty("SERVER_SUMMARY_CLIENTS", 10000);
+            // Drain and sync whatever is still queued when the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(actionLog::close));
+            metrics.gauge("log.queued", actionLog::queued);
+            metrics.histogram("log.write", actionLog.writeLatency());
+
+            // Rebuild the counters of the previous run before accepting anyone
+            if (!"off".equalsIgnoreCase(System.getProperty("SERVER_JOURNAL", "on"))) {
+                journal = new Journal(System.getProperty("SERVER_JOURNAL_DIR", "journal"),
+                        intProperty("SERVER_JOURNAL_SEGMENT_MB", 16) * 1024 * 1024,
+                        TimeUnit.SECONDS.toMillis(intProperty("SERVER_SNAPSHOT_INTERVAL_SEC", 60)),
+                        intProperty("SERVER_JOURNAL_SYNC_MS", 1000));
+                try {
+                    journal.recover((id, password, counter) -> registry.insert(id, password, counter, 0, null));
+                } catch (IOException e) {
+                    System.err.println("Unable to recover the journal: " + e.getMessage());
+                    return;
+                }
+                Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+            }
+            replicator = Replicator.fromProperties(journal);
+            if (replicator != null) {
+                metrics.gauge("replication.connected", () -> replicator.connected() ? 1 : 0);
+                metrics.gauge("replication.lag", replicator::lag);
+                replicator.start();
+            }
+            if ("standby".equalsIgnoreCase(System.getProperty("SERVER_ROLE", "primary").trim())) {
+                replicationSecret = Replicator.secret().getBytes(StandardCharsets.UTF_8);
+                promoteAfterMs = intProperty("SERVER_PROMOTE_AFTER_MS", 0);
+                standby = true;
+                metrics.gauge("replication.appliedSeq", () -> replicatedSeq);
+                System.out.println("Standby, clients are refused until promoted");
+            }
+            metrics.gauge("clients.registered", registry::size);
+            if (registry instanceof OffHeapClientRegistry offHeap) {
+                metrics.gauge("registry.offHeapBytes", offHeap::offHeapBytes);
+            }
+
+            cluster = Cluster.fromProperties();
+            if (cluster != null) {
+                // A node listens on its own address from the membership
+                port = cluster.self().port();
+                metrics.gauge("cluster.forwarding", cluster::forwarding);
+            }
+
+            timers = new TimerWheel(intProperty("SERVER_TIMER_TICK_MS", 100), 512, Executors.newVirtualThreadPerTaskExecutor());
+            sessionTimeoutMs = TimeUnit.MINUTES.toMillis(intProperty("SERVER_SESSION_TIMEOUT_MINUTES", 60));
+            int rateLimit = intProperty("SERVER_RATE_LIMIT", 1000);
+            admission = new AdmissionController(intProperty("SERVER_MAX_CONNECTIONS", 10000),
+                    intProperty("SERVER_MAX_CONNECTIONS_PER_IP", 32),
+                    intProperty("SERVER_RETRY_AFTER_MS", 1000),
+                    rateLimit, intProperty("SERVER_RATE_BURST", rateLimit), timers);
+            metrics.gauge("connections.admitted", admission::connections);
+            metrics.gauge("ratelimit.buckets", admission::buckets);
+            if (cluster != null) {
+                admission.exempt(cluster.peerAddresses());
+            }
+
+            // Selector based mode: a few event loops serve every connection
+            if ("nio".equalsIgnoreCase(System.getProperty("SERVER_MODE", "threads"))) {
+                int loops = intProperty("SERVER_NIO_THREADS", Runtime.getRuntime().availableProcessors());
+                nioServer = new NioServer(this, sslContext, loops);
+                metrics.gauge("nio.handshakeQueued", nioServer::handshakeQueued);
+                nioServer.start(port);
+                return;
+            }
+
+            // Create the server socket, TLS is layered on each accepted socket
+            SSLSocketFactory socketFactory = sslContext.getSocketFactory();
+            serverSocket = new ServerSocket(port);
+
+            if ("virtual".equalsIgnoreCase(System.getProperty("SERVER_EXECUTOR", "platform"))) {
+                // Sessions are only limited by memory, the CPU bound parts by the permits
+                sessionExecutor = Executors.newVirtualThreadPerTaskExecutor();
+                cpuPermits = new Semaphore(intProperty("SERVER_CPU_PERMITS", Runtime.getRuntime().availableProcessors()));
+            } else {
+                // Solved thread vulnerability: Initialize the thread pool with a fixed size
+                // and a bounded queue, connections beyond it are turned away instead of waiting
+                threadPool = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(intProperty("SERVER_ACCEPT_QUEUE", 50)));
+                sessionExecutor = threadPool;
+                metrics.gauge("sessions.poolActive", threadPool::getActiveCount);
+                metrics.gauge("sessions.poolQueued", () -> threadPool.getQueue().size());
+            }
+
+            System.out.println("Server started on port " + port);
+
+            while (true){
+                Socket socket = serverSocket.accept();
+                InetAddress address = socket.getInetAddress();
+                if (!admission.tryAdmit(address)) {
+                    reject(socket);
+                    continue;
+                }
+                SSLSocket clientSocket;
+                try {
+                    // Small replies (and a standby's acknowledgements) go out at once, as in NIO mode
+                    socket.setTcpNoDelay(true);
+                    clientSocket = (SSLSocket) socketFactory.createSocket(socket, address.getHostAddress(), socket.getPort(), true);
+                    clientSocket.setUseClientMode(false);
+                } catch (IOException e) {
+                    // Only this connection is lost, e.g. the peer reset it right after connecting
+                    System.err.println("Error setting up a connection from " + address.getHostAddress() + ": " + e.getMessage());
+                    admission.release(address);
+                    try {
+                        socket.close();
+                    } catch (IOException closeError) {
+                        // Gone already
+                    }
+                    continue;
+                }
+                try {
+                    sessionExecutor.execute(new ClientHandler(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    System.out.println("Max threads reached. Rejecting connection.");
+                    admission.release(address);
+                    reject(socket);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to connect to the server."); // Please check IP address
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Unable to connect to the server.");
+        }
+    }
+
+    // Answers BUSY before any handshake and closes
+    private void reject(Socket socket) {
+        metrics.connectionRejected();
+        admission.reject(socket);
+    }
+
+    public void stop() {
+        try {
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (sessionExecutor != null) {
+                sessionExecutor.shutdown();
+            }
+            if (timers != null) {
+                timers.stop();
+            }
+            if (credentials != null) {
+                credentials.shutdown();
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while stopping the server.");
+        } finally {
+            System.clearProperty("SERVER_TRUSTORE_PASSWORD");
+            System.clearProperty("SERVER_KEYSTORE_PASSWORD");
+        }
+    }
+    // Counter, password hash and instance count are in the registry
+    private class ClientInfo {
+        final String id;
+        // Encoded once for the journal
+        final byte[] idBytes;
+        // Sessions of this id that sent WATCH
+        final Set<Session> watchers = ConcurrentHashMap.newKeySet();
+
+        ClientInfo(String id) {
+            this.id = id;
+            this.idBytes = id.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // Journals a counter change before the registry lets the id be removed, so the DELTA
+    // cannot follow the id's REMOVE, and keeps the outcome for the reply
+    private class CounterChange implements ClientRegistry.Applied {
+        byte[] idBytes;
+        long previous;
+        long counter;
+        long seq;
+
+        @Override
+        public void applied(long previous, long counter) {
+            this.previous = previous;
+            this.counter = counter;
+            // What was actually applied, which differs from the delta when saturating
+            seq = journal != null ? journal.append(Journal.DELTA, idBytes, counter - previous, null) : 0;
+        }
+    }
+
+    // The SUMMARY figures of id, null while summaryClients ids are kept and none can be dropped
+    private RollingStats clientStats(String id, long now) {
+        RollingStats stats = clientStats.get(id);
+        if (stats != null) {
+            return stats;
+        }
+        if (clientStats.size() >= summaryClients) {
+            // At most once a minute, the ids kept change slowly
+            long swept = clientStatsSwept.get();
+            if (now - swept >= TimeUnit.MINUTES.toMillis(1) && clientStatsSwept.compareAndSet(swept, now)) {
+                for (String kept : clientStats.keySet()) {
+                    clientStats.computeIfPresent(kept, (key, old) -> !clients.containsKey(key) && old.idle(now) ? null : old);
+                }
+            }
+            if (clientStats.size() >= summaryClients) {
+                return null;
+            }
+        }
+        return clientStats.computeIfAbsent(id, key -> new RollingStats());
+    }
+
+    // Returns the journal's sequence number of the record, 0 without a journal
+    private long record(byte op, String id, long amount, String data) {
+        return journal != null ? journal.append(op, id, amount, data) : 0;
+    }
+
+    // Takes over an id from the node that held it, false when it exists here already
+    private boolean importClient(String id, String hash, long counter) {
+        boolean imported = registry.insert(id, hash, counter, 0, () -> {
+            record(Journal.REGISTER, id, 0, hash);
+            record(Journal.DELTA, id, counter, null);
+        });
+        if (imported) {
+            cluster.release(id);
+        }
+        return imported;
+    }
+
+    // Applies a new membership and moves the ids this node no longer owns. Ids without
+    // sessions are imported by their new owner and removed here, ids with sessions stay
+    // until their last logout and their new owner forwards to this node meanwhile.
+    // The initiating node first passes the membership on to every other node.
+    private String rebalance(List<Cluster.Node> members, boolean propagate) {
+        List<Cluster.Node> previous = cluster.setNodes(members);
+        Set<String> unreachable = new LinkedHashSet<>();
+        if (propagate) {
+            Map<String, Cluster.Node> others = new LinkedHashMap<>();
+            for (Cluster.Node node : previous) {
+                others.put(node.id(), node);
+            }
+            for (Cluster.Node node : members) {
+                others.put(node.id(), node);
+            }
+            for (Cluster.Node node : others.values()) {
+                if (cluster.isSelf(node)) {
+                    continue;
+                }
+                try {
+                    String reply = cluster.tell(node, List.of("REBALANCE " + Cluster.format(members))).get(0);
+                    if (!reply.startsWith("ACK")) {
+                        System.err.println("Node " + node.id() + " did not rebalance: " + reply);
+                        unreachable.add(node.id());
+                    }
+                } catch (IOException e) {
+                    System.err.println("Unable to reach node " + node.id() + ": " + e.getMessage());
+                    unreachable.add(node.id());
+                }
+            }
+        }
+
+        Map<Cluster.Node, List<String>> commands = new LinkedHashMap<>();
+        Map<String, ClientRegistry.Registered> moving = new HashMap<>();
+        int[] draining = new int[1];
+        registry.forEach(entry -> {
+            Cluster.Node owner = cluster.owner(entry.id());
+            if (cluster.isSelf(owner)) {
+                return;
+            }
+            cluster.beginMove(entry.id());
+            ClientRegistry.Registered idle = registry.removeIfIdle(entry.id());
+            List<String> lines = commands.computeIfAbsent(owner, node -> new ArrayList<>());
+            if (idle != null) {
+                moving.put(idle.id(), idle);
+                lines.add("IMPORT " + idle.id() + " " + idle.password() + " " + idle.counter());
+            } else {
+                cluster.endMove(entry.id());
+                lines.add("HANDOFF " + entry.id() + " " + cluster.selfId());
+                draining[0]++;
+            }
+        });
+        // Ids this node forwarded for that now belong to yet another node
+        cluster.takeForeignHolders().forEach((id, holder) -> {
+            Cluster.Node owner = cluster.owner(id);
+            if (!owner.equals(holder)) {
+                commands.computeIfAbsent(owner, node -> new ArrayList<>()).add("HANDOFF " + id + " " + holder.id());
+            }
+        });
+
+        int moved = 0;
+        Map<Cluster.Node, List<String>> handBack = new LinkedHashMap<>();
+        for (Map.Entry<Cluster.Node, List<String>> target : commands.entrySet()) {
+            List<String> lines = target.getValue();
+            List<String> replies;
+            try {
+                replies = cluster.tell(target.getKey(), lines);
+            } catch (IOException e) {
+                System.err.println("Unable to reach node " + target.getKey().id() + ": " + e.getMessage());
+                unreachable.add(target.getKey().id());
+                replies = List.of();
+            }
+            for (int i = 0; i < lines.size(); i++) {
+                String[] parts = lines.get(i).split(" ");
+                ClientRegistry.Registered info = moving.get(parts[1]);
+                if (info == null) {
+                    continue;
+                }
+                if (i < replies.size() && replies.get(i).startsWith("ACK")) {
+                    record(Journal.REMOVE, info.id(), 0, null);
+                    credentials.invalidate(info.id());
+                    moved++;
+                } else {
+                    // Keep serving it here rather than lose it, and have the owner forward its
+                    // sessions here instead of taking the id for unregistered
+                    System.err.println("Node " + target.getKey().id() + " did not import " + info.id() + ", keeping it here");
+                    registry.insert(info.id(), info.password(), info.counter(), 0, null);
+                    handBack.computeIfAbsent(target.getKey(), node -> new ArrayList<>()).add("HANDOFF " + info.id() + " " + cluster.selfId());
+                }
+                cluster.endMove(info.id());
+            }
+        }
+        // Left for the next REBALANCE to move where this fails
+        for (Map.Entry<Cluster.Node, List<String>> target : handBack.entrySet()) {
+            try {
+                List<String> replies = cluster.tell(target.getKey(), target.getValue());
+                for (int i = 0; i < target.getValue().size(); i++) {
+                    if (i >= replies.size() || !replies.get(i).startsWith("ACK")) {
+                        System.err.println("Node " + target.getKey().id() + " did not accept " + target.getValue().get(i));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to reach node " + target.getKey().id() + ": " + e.getMessage());
+                unreachable.add(target.getKey().id());
+            }
+        }
+        System.out.println("Rebalanced to " + Cluster.format(members) + ": moved " + moved + ", draining " + draining[0]);
+        if (!unreachable.isEmpty()) {
+            return "ERROR: Rebalance incomplete, unreachable: " + String.join(",", unreachable);
+        }
+        return "ACK: Rebalanced, moved " + moved + ", draining " + draining[0] + ".";
+    }
+
+    // The standby's end of the primary's connection: reassembles the journal records its
+    // frames carry and applies them like the primary did, journaling them here as well
+    private class ReplicaStream {
+        private ByteBuffer buffer = ByteBuffer.allocate(2 * CommandParser.MAX_LINE);
+        private final CRC32C check = new CRC32C();
+        // Ids of the snapshot being received, the ones missing from it are removed at its end
+        private Set<String> snapshotIds;
+
+        void receive(byte[] buf, int off, int len, boolean snapshot) throws IOException {
+            if (buffer.remaining() < len) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + len));
+                buffer.flip();
+                buffer = bigger.put(buffer);
+            }
+            buffer.put(buf, off, len);
+            buffer.flip();
+            Journal.Record change;
+            while ((change = Journal.decode(buffer, check)) != null) {
+                if (snapshot) {
+                    if (snapshotIds == null) {
+                        snapshotIds = new HashSet<>();
+                    }
+                    snapshotIds.add(change.id());
+                    apply(change);
+                } else if (change.seq() > replicatedSeq) {
+                    // Older ones were in the snapshot
+                    apply(change);
+                    replicatedSeq = change.seq();
+                }
+            }
+            buffer.compact();
+        }
+
+        void endSnapshot(long seq) {
+            List<String> stale = new ArrayList<>();
+            registry.forEach(entry -> {
+                if (snapshotIds == null || !snapshotIds.contains(entry.id())) {
+                    stale.add(entry.id());
+                }
+            });
+            for (String id : stale) {
+                remove(id);
+            }
+            System.out.println("Standby received a snapshot of " + registry.size() + " clients at seq " + seq);
+            snapshotIds = null;
+            replicatedSeq = seq;
+        }
+
+        private void apply(Journal.Record change) {
+            String id = change.id();
+            switch (change.op()) {
+                case Journal.REGISTER:
+                    remove(id);
+                    registry.insert(id, change.data(), 0, 0, () -> record(Journal.REGISTER, id, 0, change.data()));
+                    break;
+                case Journal.DELTA:
+                    try {
+                        registry.applyDelta(id, change.amount(), (previous, counter) -> record(Journal.DELTA, id, counter - previous, null));
+                    } catch (ArithmeticException e) {
+                        System.err.println("Replicated change overflows the counter of " + id);
+                    }
+                    break;
+                case Journal.REMOVE:
+                    remove(id);
+                    break;
+                default:
+                    System.err.println("Unknown replicated record " + change.op() + " at seq " + change.seq());
+            }
+        }
+
+        // A standby has no sessions, so every id is idle
+        private void remove(String id) {
+            if (registry.removeIfIdle(id) != null) {
+                record(Journal.REMOVE, id, 0, null);
+                credentials.invalidate(id);
+            }
+        }
+    }
+
+    // Makes a standby accept clients, false when it is not one
+    private synchronized boolean promote(String reason) {
+        if (!standby) {
+            return false;
+        }
+        standby = false;
+        if (promotion != null) {
+            promotion.cancel();
+            promotion = null;
+        }
+        Session previous = primary;
+        primary = null;
+        if (previous != null) {
+            previous.deliver(previous::close);
+        }
+        System.out.println("Promoted to primary (" + reason + ") with " + registry.size() + " clients at seq " + replicatedSeq);
+        return true;
+    }
+
+    // A primary connected, it takes over from the previous connection if there was one
+    private synchronized boolean attachPrimary(Session session) {
+        if (!standby) {
+            return false;
+        }
+        if (promotion != null) {
+            promotion.cancel();
+            promotion = null;
+        }
+        Session previous = primary;
+        primary = session;
+        if (previous != null) {
+            previous.deliver(previous::close);
+        }
+        return true;
+    }
+
+    private synchronized void primaryDisconnected(Session session) {
+        if (primary != session) {
+            return;
+        }
+        primary = null;
+        System.err.println("Primary disconnected at seq " + replicatedSeq);
+        if (standby && promoteAfterMs > 0) {
+            promotion = timers.newTimeout(() -> promote("primary gone for " + promoteAfterMs + " ms"), promoteAfterMs);
+        }
+    }
+
+    private boolean authenticateReplication(String candidate) {
+        return replicationSecret != null && MessageDigest.isEqual(replicationSecret, candidate.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Protocol state of one connection. The blocking ClientHandler and the
+    // NIO connections only differ in how they write replies and close the socket.
+    abstract class Session {
+        private static final int MAX_TAG = 24;
+
+        String clientId;
+        // Set once the client switched to binary frames with the BINARY command
+        boolean binary;
+        // Request id of the command being handled: the "#42" prefix in text mode, the frame's id in binary mode
+        private final byte[] tag = new byte[MAX_TAG];
+        private int tagLength;
+        private long requestId;
+        private final CommandParser.ReplyBuffer reply = new CommandParser.ReplyBuffer();
+        private final CommandParser.Cursor cursor = new CommandParser.Cursor();
+        // The timer wheel writes too, keep its messages from interleaving with replies
+        private final ReentrantLock outputLock = new ReentrantLock();
+        // When the REGISTER being handled was read, for its latency
+        private long registerStart;
+        // Set while the session is relayed to the node serving its id (cluster mode)
+        private Cluster.Forward upstream;
+        // Another node of the cluster, authenticated with PEER for cluster commands,
+        // or with FORWARD to relay a client session
+        private boolean peer;
+        private boolean forwarded;
+        // Set on a standby for the primary's connection, authenticated with REPLICATE
+        private ReplicaStream replica;
+        // The entry whose counter changes are pushed to this session, null unless it sent WATCH
+        private ClientInfo watched;
+        // Set while a push is scheduled, changes meanwhile are folded into it
+        private final AtomicBoolean pushPending = new AtomicBoolean();
+        // Reused by every INCREASE and DECREASE of the session
+        private final CounterChange counterChange = new CounterChange();
+
+        // Writes raw protocol bytes to the client
+        abstract void write(byte[] buf, int off, int len);
+
+        abstract void close();
+
+        // Pushes out replies that were buffered, for lines written outside the command loop
+        void flush() {
+        }
+
+        // Runs output work that comes from another thread, e.g. replies relayed from another node
+        void deliver(Runnable task) {
+            outputLock.lock();
+            try {
+                task.run();
+            } finally {
+                outputLock.unlock();
+            }
+            flush();
+        }
+
+        // Runs output work without blocking the calling thread
+        void push(Runnable task) {
+            pushExecutor.execute(() -> deliver(task));
+        }
+
+        // Called by another session of the id after it changed the counter. At most one
+        // push is pending per watcher and it sends the counter as it is when written, so
+        // a slow reader gets the latest value instead of a backlog of every change.
+        void counterChanged() {
+            if (pushPending.compareAndSet(false, true)) {
+                push(this::pushCounter);
+            }
+        }
+
+        // "WATCH <value>" in text mode, a COUNTER frame with request id 0 in binary mode
+        private void pushCounter() {
+            pushPending.set(false);
+            ClientInfo info = watched;
+            if (info == null) {
+                return;
+            }
+            long counter = registry.counter(info.id);
+            CommandParser.ReplyBuffer out = reply.reset();
+            if (binary) {
+                out.beginFrame(CommandParser.OP_COUNTER, 0).zigzag(counter).endFrame();
+            } else {
+                out.put(CommandParser.WATCH).decimal(counter).put((byte) '\n');
+            }
+            write(out.array(), 0, out.length());
+        }
+
+        private void handleWatch(boolean watch) {
+            if (clientId == null) {
+                send("ERROR: Client not registered.");
+                return;
+            }
+            if (!watch) {
+                unwatch();
+                send("ACK: Not watching.");
+                return;
+            }
+            if (watched == null) {
+                // Under the map's lock, the last LOGOUT of the id cannot remove it in between
+                clients.computeIfPresent(clientId, (key, info) -> {
+                    info.watchers.add(this);
+                    watched = info;
+                    return info;
+                });
+                if (watched == null) {
+                    send("ERROR: Client not registered.");
+                    return;
+                }
+            }
+            send("ACK: Watching.");
+            // The current value, after the ACK
+            counterChanged();
+        }
+
+        void unwatch() {
+            ClientInfo info = watched;
+            if (info != null) {
+                watched = null;
+                info.watchers.remove(this);
+            }
+        }
+
+        // The connection ended, however it did
+        void disconnected() {
+            // Reset, TLS failure or any other abrupt end: the id's session slot is given back as on LOGOUT
+            if (clientId != null) {
+                handleLogout();
+            }
+            closeUpstream();
+            unwatch();
+            if (replica != null) {
+                primaryDisconnected(this);
+            }
+        }
+
+        // Writes a message that answers no command
+        void write(String line) {
+            message(false, line);
+        }
+
+        // Replies to the current command, echoing its request id when it had one
+        void send(String line) {
+            message(true, line);
+        }
+
+        private void message(boolean isReply, String line) {
+            outputLock.lock();
+            try {
+                CommandParser.ReplyBuffer out = reply.reset();
+                if (binary) {
+                    byte opcode = line.startsWith("ERROR") ? CommandParser.OP_ERROR : CommandParser.OP_OK;
+                    out.beginFrame(opcode, isReply ? requestId : 0).bytes(line.getBytes(StandardCharsets.UTF_8)).endFrame();
+                } else {
+                    if (isReply && tagLength > 0) {
+                        out.put(tag, 0, tagLength).put((byte) ' ');
+                    }
+                    out.utf8(line).put((byte) '\n');
+                }
+                write(out.array(), 0, out.length());
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        // "Counter increased to <value>" built in the reply buffer without Strings
+        private void sendCounter(boolean increase, long counter) {
+            outputLock.lock();
+            try {
+                CommandParser.ReplyBuffer out = reply.reset();
+                if (binary) {
+                    out.beginFrame(CommandParser.OP_COUNTER, requestId).zigzag(counter).endFrame();
+                } else {
+                    if (tagLength > 0) {
+                        out.put(tag, 0, tagLength).put((byte) ' ');
+                    }
+                    out.put(increase ? CommandParser.INCREASED : CommandParser.DECREASED).decimal(counter).put((byte) '\n');
+                }
+                write(out.array(), 0, out.length());
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        // Called from the timer wheel when one of the session deadlines passes
+        void expire(String reason) {
+            // The primary's heartbeats keep its connection active, the session lifetime is for clients
+            if (replica != null && !reason.equals("inactivity")) {
+                return;
+            }
+            write("Session closed due to " + reason + " for the client: " + clientId);
+            handleLogout();
+            flush();
+            close();
+        }
+
+        // Handles one text line (without its line terminator). Returns false once the client
+        // logged out and the connection should end. Pipelined clients prefix commands with
+        // "#<id> " and get replies tagged the same way; commands are answered in order.
+        boolean handleLine(byte[] buf, int off, int len) {
+            if (upstream != null) {
+                relayLine(buf, off, len);
+                return true;
+            }
+            long start = System.nanoTime();
+            int end = off + len;
+            int pos = off;
+            tagLength = 0;
+            if (len > 0 && buf[off] == '#') {
+                int space = CommandParser.indexOf(buf, off, end, (byte) ' ');
+                if (space < 0 || space - off > MAX_TAG) {
+                    write("ERROR: Invalid format.");
+                    return true;
+                }
+                tagLength = space - off;
+                System.arraycopy(buf, off, tag, 0, tagLength);
+                pos = space + 1;
+            }
+
+            int commandEnd = CommandParser.indexOf(buf, pos, end, (byte) ' ');
+            if (commandEnd < 0) {
+                commandEnd = end;
+            }
+            // INCREASE and DECREASE are parsed in place, the other commands are rare enough for Strings
+            boolean increase = CommandParser.matches(buf, pos, commandEnd, CommandParser.INCREASE);
+            if (increase || CommandParser.matches(buf, pos, commandEnd, CommandParser.DECREASE)) {
+                long amount = commandEnd < end ? CommandParser.parseAmount(buf, commandEnd + 1, end) : CommandParser.INVALID;
+                handleCounterOperation(increase, amount);
+                metrics.command(increase ? Metrics.Command.INCREASE : Metrics.Command.DECREASE, start);
+                return true;
+            }
+            return handleCommand(new String(buf, pos, end - pos, StandardCharsets.UTF_8), start);
+        }
+
+        // Passes a line on to the node serving the session, the owner answers it
+        private void relayLine(byte[] buf, int off, int len) {
+            upstream.sendLine(buf, off, len);
+            int end = off + len;
+            int pos = off;
+            if (len > 0 && buf[off] == '#') {
+                int space = CommandParser.indexOf(buf, off, end, (byte) ' ');
+                pos = space < 0 ? end : space + 1;
+            }
+            // The owner reads frames after BINARY, so from now on this side does too
+            if (CommandParser.matches(buf, pos, end, CommandParser.BINARY)) {
+                binary = true;
+            }
+        }
+
+        private boolean handleCommand(String message, long start) {
+            String[] parts = message.split(" ");
+            String command = parts[0];
+
+            switch (command) {
+                case "REGISTER":
+                    registerStart = start;
+                    if (parts.length < 3) {
+                        send("ERROR: Invalid registration format.");
+                        metrics.command(Metrics.Command.REGISTER, start);
+                    } else {
+                        handleRegister(parts[1], parts[2]);
+                    }
+                    break;
+                case "BINARY":
+                    send("ACK: Binary framing enabled.");
+                    binary = true;
+                    metrics.command(Metrics.Command.BINARY, start);
+                    break;
+                case "STATS":
+                    handleStats();
+                    metrics.command(Metrics.Command.STATS, start);
+                    break;
+                case "HISTORY":
+                    if (parts.length < 3) {
+                        send("ERROR: Invalid format.");
+                        metrics.command(Metrics.Command.HISTORY, start);
+                    } else {
+                        handleHistory(parseTime(parts[1], false), parseTime(parts[2], true), start);
+                    }
+                    break;
+                case "PEER":
+                case "FORWARD":
+                    if (cluster != null && parts.length == 2 && clientId == null && cluster.authenticate(parts[1])) {
+                        peer = command.equals("PEER");
+                        forwarded = !peer;
+                        send(peer ? "ACK: Peer." : "ACK: Forwarding.");
+                    } else {
+                        send("ERROR: Not authorized.");
+                    }
+                    metrics.command(Metrics.Command.CLUSTER, start);
+                    break;
+                case "IMPORT":
+                case "HANDOFF":
+                case "RELEASE":
+                case "REBALANCE":
+                    handleCluster(parts, start);
+                    break;
+                case "REPLICATE":
+                case "PROMOTE":
+                    handleReplication(parts);
+                    metrics.command(Metrics.Command.REPLICATION, start);
+                    break;
+                case "PING":
+                    send("PONG");
+                    metrics.command(Metrics.Command.PING, start);
+                    break;
+                case "SUMMARY":
+                    handleSummary(parts.length > 1 ? parts[1] : null);
+                    metrics.command(Metrics.Command.SUMMARY, start);
+                    break;
+                case "WATCH":
+                case "UNWATCH":
+                    handleWatch(command.equals("WATCH"));
+                    metrics.command(Metrics.Command.WATCH, start);
+                    break;
+                case "LOGOUT":
+                    handleLogout();
+                    metrics.command(Metrics.Command.LOGOUT, start);
+                    return false;
+                default:
+                    send("ERROR: Unknown command.");
+                    metrics.command(Metrics.Command.UNKNOWN, start);
+                    break;
+            }
+            return true;
+        }
+
+        // Commands between the nodes of a cluster. REBALANCE <node>=<host>:<port>,... may also
+        // come from an admin id, the node then passes it on to the others.
+        private void handleCluster(String[] parts, long start) {
+            String command = parts[0];
+            boolean admin = clientId != null && adminIds.contains(clientId);
+            if (cluster == null || !(peer || admin && command.equals("REBALANCE"))) {
+                send("ERROR: Not authorized.");
+                metrics.command(Metrics.Command.CLUSTER, start);
+                return;
+            }
+            int arguments = command.equals("IMPORT") ? 4 : command.equals("HANDOFF") ? 3 : 2;
+            if (parts.length != arguments) {
+                send("ERROR: Invalid format.");
+                metrics.command(Metrics.Command.CLUSTER, start);
+                return;
+            }
+            switch (command) {
+                case "IMPORT":
+                    // IMPORT <id> <bcrypt hash> <counter>
+                    long counter;
+                    try {
+                        counter = Long.parseLong(parts[3]);
+                    } catch (NumberFormatException e) {
+                        send("ERROR: Invalid format.");
+                        break;
+                    }
+                    send(importClient(parts[1], parts[2], counter) ? "ACK: Imported." : "ERROR: Client exists.");
+                    break;
+                case "HANDOFF":
+                    // HANDOFF <id> <node id>: the id's sessions live on that node until it sends RELEASE
+                    Cluster.Node holder = cluster.node(parts[2]);
+                    if (holder == null) {
+                        send("ERROR: Unknown node.");
+                        break;
+                    }
+                    cluster.handoff(parts[1], holder);
+                    send("ACK: Handed off.");
+                    break;
+                case "RELEASE":
+                    cluster.release(parts[1]);
+                    send("ACK: Released.");
+                    break;
+                default:
+                    List<Cluster.Node> members;
+                    try {
+                        members = Cluster.parse(parts[1]);
+                    } catch (IllegalArgumentException e) {
+                        send("ERROR: Invalid format.");
+                        break;
+                    }
+                    boolean propagate = !peer;
+                    await(CompletableFuture.supplyAsync(() -> rebalance(members, propagate), cluster.executor()), reply -> {
+                        send(reply);
+                        metrics.command(Metrics.Command.CLUSTER, start);
+                    });
+                    return;
+            }
+            metrics.command(Metrics.Command.CLUSTER, start);
+        }
+
+        // REPLICATE <secret> from the primary, PROMOTE <secret> from whoever fails over
+        private void handleReplication(String[] parts) {
+            if (!standby) {
+                send("ERROR: Not a standby.");
+                return;
+            }
+            if (parts.length != 2 || clientId != null || !authenticateReplication(parts[1])) {
+                send("ERROR: Not authorized.");
+                return;
+            }
+            if (parts[0].equals("PROMOTE")) {
+                send(promote("PROMOTE") ? "ACK: Promoted." : "ERROR: Not a standby.");
+                return;
+            }
+            if (replica == null) {
+                replica = new ReplicaStream();
+            }
+            send(attachPrimary(this) ? "ACK: Replicating." : "ERROR: Not a standby.");
+        }
+
+        // SNAPSHOT and REPLICATE frames from the primary
+        private void handleReplicated(boolean snapshot, CommandParser.Cursor in) {
+            if (replica == null || !standby) {
+                send("ERROR: Not authorized.");
+                close();
+                return;
+            }
+            boolean end = snapshot && in.pos == in.end;
+            try {
+                if (end) {
+                    replica.endSnapshot(requestId);
+                } else {
+                    replica.receive(in.buf, in.pos, in.end - in.pos, snapshot);
+                }
+            } catch (IOException e) {
+                System.err.println("Invalid replication stream: " + e.getMessage());
+                close();
+                return;
+            }
+            if (end || !snapshot) {
+                // Answered like a counter operation, with the last seq applied
+                sendCounter(true, replicatedSeq);
+            }
+        }
+
+        // Handles one binary frame payload (opcode, request id, fields), see CommandParser
+        boolean handleFrame(byte[] buf, int off, int len) {
+            if (upstream != null) {
+                upstream.sendFrame(buf, off, len);
+                return true;
+            }
+            long start = System.nanoTime();
+            CommandParser.Cursor in = cursor.wrap(buf, off, len);
+            byte opcode = in.opcode();
+            requestId = Math.max(0, in.varint());
+
+            switch (opcode) {
+                case CommandParser.OP_INCREASE:
+                case CommandParser.OP_DECREASE:
+                    long amount = in.varint();
+                    boolean valid = amount >= 0 && amount <= Integer.MAX_VALUE;
+                    handleCounterOperation(opcode == CommandParser.OP_INCREASE, valid ? amount : CommandParser.INVALID);
+                    metrics.command(opcode == CommandParser.OP_INCREASE ? Metrics.Command.INCREASE : Metrics.Command.DECREASE, start);
+                    return true;
+                case CommandParser.OP_REGISTER:
+                    registerStart = start;
+                    String id = in.string();
+                    String password = in.string();
+                    if (id == null || password == null) {
+                        send("ERROR: Invalid registration format.");
+                        metrics.command(Metrics.Command.REGISTER, start);
+                    } else {
+                        handleRegister(id, password);
+                    }
+                    return true;
+                case CommandParser.OP_STATS:
+                    handleStats();
+                    metrics.command(Metrics.Command.STATS, start);
+                    return true;
+                case CommandParser.OP_HISTORY:
+                    long from = in.varint();
+                    long to = in.varint();
+                    handleHistory(from < 0 ? CommandParser.INVALID : from, to < 0 ? CommandParser.INVALID : to, start);
+                    return true;
+                case CommandParser.OP_PING:
+                    send("PONG");
+                    metrics.command(Metrics.Command.PING, start);
+                    return true;
+                case CommandParser.OP_SUMMARY:
+                    handleSummary(in.string());
+                    metrics.command(Metrics.Command.SUMMARY, start);
+                    return true;
+                case CommandParser.OP_WATCH:
+                case CommandParser.OP_UNWATCH:
+                    handleWatch(opcode == CommandParser.OP_WATCH);
+                    metrics.command(Metrics.Command.WATCH, start);
+                    return true;
+                case CommandParser.OP_REPLICATE:
+                case CommandParser.OP_SNAPSHOT:
+                    handleReplicated(opcode == CommandParser.OP_SNAPSHOT, in);
+                    metrics.command(Metrics.Command.REPLICATION, start);
+                    return true;
+                case CommandParser.OP_LOGOUT:
+                    handleLogout();
+                    metrics.command(Metrics.Command.LOGOUT, start);
+                    return false;
+                default:
+                    send("ERROR: Unknown command.");
+                    metrics.command(Metrics.Command.UNKNOWN, start);
+                    return true;
+            }
+        }
+
+        // Only logged in ids listed in SERVER_ADMIN_IDS may read the metrics
+        private void handleStats() {
+            if (clientId == null || !adminIds.contains(clientId)) {
+                send("ERROR: Not authorized.");
+                return;
+            }
+            send(metrics.format());
+        }
+
+        // The client's own operations over the last minute, hour and day. Admin ids may also
+        // ask for any id kept here, or for "*", all clients of this server.
+        private void handleSummary(String target) {
+            if (clientId == null) {
+                send("ERROR: Client not registered.");
+                return;
+            }
+            if (target == null || target.isEmpty()) {
+                target = clientId;
+            } else if (!target.equals(clientId) && !adminIds.contains(clientId)) {
+                send("ERROR: Not authorized.");
+                return;
+            }
+            RollingStats stats = target.equals("*") ? summary : clientStats.get(target);
+            if (stats == null && (target.equals(clientId) || registry.password(target) != null)) {
+                stats = NO_OPERATIONS;
+            } else if (stats == null) {
+                send("ERROR: Unknown client.");
+                return;
+            }
+            send("SUMMARY " + target + " " + stats.format(RollingStats.now()));
+        }
+
+        // Streams the client's own log entries between from and to, one "HISTORY <entry>" line
+        // each, oldest first, then "HISTORY END <count>" (with " truncated" past the limit)
+        private void handleHistory(long from, long to, long start) {
+            if (clientId == null) {
+                send("ERROR: Client not registered.");
+                metrics.command(Metrics.Command.HISTORY, start);
+                return;
+            }
+            if (from == CommandParser.INVALID || to == CommandParser.INVALID || from > to) {
+                send("ERROR: Invalid format.");
+                metrics.command(Metrics.Command.HISTORY, start);
+                return;
+            }
+            // One more than the limit tells whether there was more
+            await(actionLog.history(clientId, from, to, historyLimit + 1), entries -> {
+                int count = Math.min(entries.size(), historyLimit);
+                for (int i = 0; i < count; i++) {
+                    send("HISTORY " + entries.get(i));
+                }
+                send("HISTORY END " + count + (entries.size() > historyLimit ? " truncated" : ""));
+                metrics.command(Metrics.Command.HISTORY, start);
+            });
+        }
+
+        // Continues with the result of work done off the session, e.g. bcrypt. The blocking
+        // handler just waits for it, NIO connections pause their input until it is done.
+        <T> void await(CompletableFuture<T> result, Consumer<T> then) {
+            T value;
+            try {
+                value = result.join();
+            } catch (CompletionException | CancellationException e) {
+                // The bcrypt pool is saturated
+                send("ERROR: Server busy. Please try again later.");
+                return;
+            }
+            then.accept(value);
+        }
+
+        void handleRegister(String id, String password) {
+            if (standby) {
+                send("ERROR: Standby server, not accepting clients.");
+                metrics.command(Metrics.Command.REGISTER, registerStart);
+                return;
+            }
+            String hash = registry.password(id);
+            if (hash == null && cluster != null && forwardRegister(id, password)) {
+                return;
+            }
+            if (hash == null) {
+                // Register new client if ID is not in use
+                await(credentials.hash(password), newHash -> completeRegistration(id, password, newHash));
+            } else {
+                // Verify if the password matches
+                await(credentials.verify(id, password, hash), valid -> completeLogin(id, password, hash, valid));
+            }
+        }
+
+        // Cluster mode: relays the session to the node serving the id, from the REGISTER on.
+        // Returns false when the id is served here.
+        private boolean forwardRegister(String id, String password) {
+            if (cluster.moving(id)) {
+                // Removed here, its new owner may not have it yet
+                send("ERROR: Server busy. Please try again later.");
+                metrics.command(Metrics.Command.REGISTER, registerStart);
+                return true;
+            }
+            Cluster.Node target = cluster.route(id);
+            if (target == null) {
+                return false;
+            }
+            if (forwarded && cluster.holder(id) == null) {
+                // Sent here by a node whose membership differs from ours, mid-rebalance
+                send("ERROR: Server busy. Please try again later.");
+                metrics.command(Metrics.Command.REGISTER, registerStart);
+                return true;
+            }
+            await(cluster.forward(target, binary, reply -> deliver(() -> write(reply, 0, reply.length)), () -> deliver(this::close)), forward -> {
+                upstream = forward;
+                // The REGISTER itself goes first, with its request id
+                CommandParser.ReplyBuffer register = new CommandParser.ReplyBuffer();
+                if (binary) {
+                    register.beginFrame(CommandParser.OP_REGISTER, requestId)
+                            .bytes(id.getBytes(StandardCharsets.UTF_8))
+                            .bytes(password.getBytes(StandardCharsets.UTF_8))
+                            .endFrame();
+                } else {
+                    if (tagLength > 0) {
+                        register.put(tag, 0, tagLength).put((byte) ' ');
+                    }
+                    register.utf8("REGISTER " + id + " " + password).put((byte) '\n');
+                }
+                forward.send(Arrays.copyOf(register.array(), register.length()));
+                metrics.command(Metrics.Command.REGISTER, registerStart);
+            });
+            return true;
+        }
+
+        // Ends the relay to another node, which logs the session out there
+        void closeUpstream() {
+            Cluster.Forward forward = upstream;
+            if (forward != null) {
+                upstream = null;
+                forward.close();
+            }
+        }
+
+        // Registration and login run under the registry's lock for this id so they cannot
+        // interleave with the last logout removing the entry
+        private void completeRegistration(String id, String password, String hash) {
+            long[] seq = new long[1];
+            boolean inserted = registry.insert(id, hash, 0, 1, () -> {
+                seq[0] = record(Journal.REGISTER, id, 0, hash);
+                clients.put(id, new ClientInfo(id));
+            });
+            if (!inserted) {
+                // Registered by someone else meanwhile
+                registered(id, password, RETRY);
+            } else if (replicator != null && replicator.sync()) {
+                await(replicator.replicated(seq[0]), ignored -> registered(id, password, REGISTERED));
+            } else {
+                registered(id, password, REGISTERED);
+            }
+        }
+
+        private void completeLogin(String id, String password, String hash, boolean valid) {
+            if (!valid) {
+                registered(id, password, WRONG_PASSWORD);
+                return;
+            }
+            int outcome;
+            switch (registry.acquire(id, hash, MAX_INSTANCES, () -> clients.computeIfAbsent(id, ClientInfo::new))) {
+                case ClientRegistry.ACQUIRED:
+                    outcome = LOGGED_IN;
+                    break;
+                case ClientRegistry.FULL:
+                    outcome = TOO_MANY_SESSIONS;
+                    break;
+                default:
+                    outcome = RETRY; // removed or registered again meanwhile
+                    break;
+            }
+            registered(id, password, outcome);
+        }
+
+        private void registered(String id, String password, int outcome) {
+            if (outcome != RETRY) {
+                // Includes the time spent waiting for bcrypt
+                metrics.command(Metrics.Command.REGISTER, registerStart);
+            }
+            switch (outcome) {
+                case REGISTERED:
+                    clientId = id;
+                    send("ACK: Registration successful.");
+                    break;
+                case LOGGED_IN:
+                    clientId = id;
+                    send("ACK: Login successful.");
+                    break;
+                case WRONG_PASSWORD:
+                    System.out.println("ERROR: ID already in use with a different password.");
+                    send("ERROR: ID already in use with a different password.");
+                    break;
+                case RETRY:
+                    handleRegister(id, password);
+                    break;
+                default:
+                    System.out.println("ERROR: Maximum concurrent logins reached for client " + id);
+                    send("Use one of your open sessions. ");
+                    close();
+                    break;
+            }
+        }
+
+        // amount is CommandParser.INVALID when the command did not carry a number
+        void handleCounterOperation(boolean increase, long amount) {
+            if (clientId == null) {
+                send("ERROR: Client not registered.");
+                return;
+            }
+            // Check for strings
+            if (amount == CommandParser.INVALID) {
+                send("ERROR: Invalid format.");
+                return;
+            }
+            // No negative numbers, overflow of the counter itself is handled by the counter store
+            if (amount < 0) {
+                send("ERROR: Invalid amount.");
+                return;
+            }
+
+            ClientInfo clientInfo = clients.get(clientId);
+            if (clientInfo == null) {
+                // Logged out meanwhile by the timer wheel
+                send("ERROR: Client not registered.");
+                return;
+            }
+            long retryAfter = admission != null ? admission.tryAcquire(clientId) : 0;
+            if (retryAfter > 0) {
+                metrics.rateLimited();
+                send("ERROR: Rate limit exceeded. Retry after " + retryAfter + " ms.");
+                return;
+            }
+            CounterChange change = counterChange;
+            change.idBytes = clientInfo.idBytes;
+            try {
+                if (!registry.applyDelta(clientId, increase ? amount : -amount, change)) {
+                    send("ERROR: Client not registered.");
+                    return;
+                }
+            } catch (ArithmeticException e) {
+                send("ERROR: Counter overflow.");
+                return;
+            }
+            long counter = change.counter;
+            long seq = change.seq;
+            long now = RollingStats.now();
+            long applied = increase ? counter - change.previous : change.previous - counter;
+            RollingStats stats = clientStats(clientId, now);
+            if (stats != null) {
+                stats.record(now, increase, applied);
+            }
+            summary.record(now, increase, applied);
+            if (replicator != null && replicator.sync()) {
+                await(replicator.replicated(seq), ignored -> replyCounter(clientInfo, increase, amount, counter));
+            } else {
+                replyCounter(clientInfo, increase, amount, counter);
+            }
+        }
+
+        // Replies to an INCREASE or DECREASE once it is applied (and with SERVER_REPLICATION_ACK=sync, replicated)
+        private void replyCounter(ClientInfo clientInfo, boolean increase, long amount, long counter) {
+            sendCounter(increase, counter);
+            // Other sessions of the id that watch it
+            if (!clientInfo.watchers.isEmpty()) {
+                for (Session watcher : clientInfo.watchers) {
+                    if (watcher != this) {
+                        watcher.counterChanged();
+                    }
+                }
+            }
+
+            generatelogfile(clientId, increase ? "INCREASE" : "DECREASE", (int) amount);
+        }
+
+        void handleLogout() {
+            closeUpstream();
+            unwatch();
+            if (clientId == null) {
+                return;
+            }
+            String id = clientId;
+            // Decrement instance count, the last one removes the client
+            int remaining = registry.release(id, () -> {
+                record(Journal.REMOVE, id, 0, null);
+                credentials.invalidate(id);
+                clients.remove(id);
+            });
+
+            if (remaining <= 0 && cluster != null) {
+                releaseHandoff(clientId);
+            }
+            if (remaining <= 0) {
+                System.out.println("Client information deleted");
+                send("Session successfully terminated.");
+            } else {
+                send("ACK: Logout successful, remaining instances: " + remaining);
+            }
+            clientId = null;
+            close();
+        }
+    }
+
+    // The last session of an id that moved to another node ended, its owner serves it from now on
+    private void releaseHandoff(String id) {
+        Cluster.Node owner = cluster.owner(id);
+        if (cluster.isSelf(owner)) {
+            return;
+        }
+        cluster.tellAsync(owner, List.of("RELEASE " + id)).exceptionally(e -> {
+            System.err.println("Unable to release " + id + " to node " + owner.id() + ": " + e.getMessage());
+            return null;
+        });
+    }
+
+    private class ClientHandler extends Session implements Runnable {
+        private SSLSocket clientSocket;
+        private OutputStream out;
+        private CommandParser.InputReader in;
+
+        public ClientHandler(SSLSocket socket) {
+            this.clientSocket = socket;
+        }
+
+        @Override
+        void write(byte[] buf, int off, int len) {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.write(buf, off, len);
+            } catch (IOException e) {
+                // The connection is gone, the read loop will notice
+            }
+        }
+
+        @Override
+        void flush() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                // The connection is gone, the read loop will notice
+            }
+        }
+
+        @Override
+        void close() {
+            try {
+                flush();
+                clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client socket.");
+            }
+        }
+
+        public void run() {
+            // Armed before the handshake so a client that never completes it is dropped as well
+            TimerWheel.Timeout inactivity = timers.newTimeout(() -> expire("inactivity"), INACTIVITY_TIMEOUT_MS);
+            TimerWheel.Timeout sessionDeadline = sessionTimeoutMs > 0 ? timers.newTimeout(() -> expire("session timeout"), sessionTimeoutMs) : null;
+            metrics.connectionOpened();
+            try {
+                // The handshake is the expensive part of a session, the rest mostly waits on the socket
+                long handshakeStart = System.currentTimeMillis();
+                long handshakeStartNanos = System.nanoTime();
+                cpuBound(clientSocket::startHandshake);
+                recordHandshake(clientSocket.getSession(), handshakeStart, handshakeStartNanos);
+                in = new CommandParser.InputReader(clientSocket.getInputStream());
+                out = new BufferedOutputStream(clientSocket.getOutputStream());
+
+                while (binary ? in.readFrame() : in.readLine()) {
+                    inactivity.reset(INACTIVITY_TIMEOUT_MS);
+
+                    boolean open = binary
+                            ? handleFrame(in.buffer(), in.messageStart, in.messageLength)
+                            : handleLine(in.buffer(), in.messageStart, in.messageLength);
+                    if (!open) {
+                        return;
+                    }
+                    // Replies of pipelined commands go out together once the input is drained
+                    if (!in.ready()) {
+                        flush();
+                    }
+                }
+                // End of stream without LOGOUT
+                handleLogout();
+            } catch (SocketException e) {
+                System.err.println("Client disconnected abruptly: " + clientId);
+                handleLogout(); // Treat as a "LOGOUT"
+            } catch (IOException e) {
+                System.err.println("Error occurred while handling client.");
+            } finally {
+                try {
+                    if (clientSocket != null) clientSocket.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing client socket");
+                }
+                disconnected();
+                inactivity.cancel();
+                if (sessionDeadline != null) {
+                    sessionDeadline.cancel();
+                }
+                if (admission != null && clientSocket != null) {
+                    admission.release(clientSocket.getInetAddress());
+                }
+                metrics.connectionClosed();
+            }
+        }
+    }
+
+
+    private static void generatelogfile(String clientId, String action, int amount){
+        // Queued for the log writer thread, which encodes the JSON line (see LogEncoder).
+        // See ActionLog for what is guaranteed to reach the disk.
+        actionLog.append(clientId, action, amount);
+    }
+
+    public static void main(String args[]) {
+        // Load environment variables from .env file
+        loadEnv();
+        Server server = new Server();
+        server.start(intProperty("SERVER_PORT", 5001));
+    }
+}
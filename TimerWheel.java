@@ -0,0 +1,145 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Hashed timer wheel shared by all sessions. One thread advances the wheel every
+// tick; timeouts live in intrusive lists so scheduling, resetting and cancelling
+// never create a thread. A reset only moves the deadline forward, the wheel
+// re-files the entry when its old slot comes around.
+public class TimerWheel {
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    // Expired tasks run here so a slow task cannot hold up the wheel
+    private final Executor executor;
+    // New timeouts are handed to the wheel thread through this queue
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private long currentTick;
+    private volatile boolean running = true;
+
+    public TimerWheel(long tickMillis, int wheelSize, Executor executor) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.executor = executor;
+
+        Thread worker = new Thread(this::run, "session-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout newTimeout(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task);
+        timeout.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public class Timeout {
+        private final Runnable task;
+        private volatile long deadline;
+        private volatile boolean cancelled;
+        // Only touched by the wheel thread
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        // Pushes the deadline to now + delay, O(1) and lock free
+        public void reset(long delayMillis) {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private void run() {
+        long nextTick = startTime + tickNanos;
+        while (running) {
+            long sleep = nextTick - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (!timeout.cancelled) {
+                    place(timeout);
+                }
+            }
+            expire(System.nanoTime());
+            currentTick++;
+            nextTick += tickNanos;
+        }
+    }
+
+    private void expire(long now) {
+        int index = (int) (currentTick & mask);
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                unlink(timeout);
+            } else if (timeout.deadline - now <= 0) {
+                unlink(timeout);
+                try {
+                    executor.execute(timeout.task);
+                } catch (RuntimeException e) {
+                    System.err.println("Error running session timeout: " + e.getMessage());
+                }
+            } else if (slotOf(timeout.deadline) != index) {
+                // The deadline was reset since the entry was filed
+                unlink(timeout);
+                place(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private int slotOf(long deadline) {
+        long ticks = Math.max(currentTick, (deadline - startTime) / tickNanos);
+        return (int) (ticks & mask);
+    }
+
+    private void place(Timeout timeout) {
+        int index = slotOf(timeout.deadline);
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+}
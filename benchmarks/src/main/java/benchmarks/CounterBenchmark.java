@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+// handleCounterOperation, i.e. the counter update, the log entry and the reply,
+// from 1, 4 and 16 sessions at once. With ids=same every session updates one
+// counter, with ids=different each session has its own. registry picks SERVER_REGISTRY.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterBenchmark {
+    private static final int MAX_THREADS = 16;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"same", "different"})
+        public String ids;
+
+        @Param({"heap", "offheap"})
+        public String registry;
+
+        Object server;
+        private Path logFile;
+
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            System.setProperty("SERVER_REGISTRY", registry);
+            logFile = ServerAccess.tempLogFile();
+            server = ServerAccess.newServer(logFile);
+            for (int i = 0; i < MAX_THREADS; i++) {
+                ServerAccess.register(ServerAccess.newSession(server), "counter-" + i);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            ServerAccess.closeServer(logFile);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        Object session;
+
+        @Setup(Level.Trial)
+        public void setup(Shared shared, ThreadParams thread) throws Throwable {
+            session = ServerAccess.newSession(shared.server);
+            int index = shared.ids.equals("same") ? 0 : thread.getThreadIndex() % MAX_THREADS;
+            ServerAccess.bind(session, "counter-" + index);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void increase1(Session s) throws Throwable {
+        ServerAccess.HANDLE_COUNTER_OPERATION.invokeExact(s.session, true, 1L);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void increase4(Session s) throws Throwable {
+        ServerAccess.HANDLE_COUNTER_OPERATION.invokeExact(s.session, true, 1L);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void increase16(Session s) throws Throwable {
+        ServerAccess.HANDLE_COUNTER_OPERATION.invokeExact(s.session, true, 1L);
+    }
+}
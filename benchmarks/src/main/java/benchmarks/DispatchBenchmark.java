@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The read loop of ClientHandler.run without the socket: commands are read from
+// an in-memory stream with CommandParser.InputReader and dispatched to the session,
+// whose replies are dropped. Reported per command.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    private static final int COMMANDS = 1024;
+
+    // text: plain and "#id" tagged lines, binary: frames after the BINARY command
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private Path logFile;
+    private Object session;
+    private byte[] input;
+
+    @Setup
+    public void setup() throws Throwable {
+        logFile = ServerAccess.tempLogFile();
+        Object server = ServerAccess.newServer(logFile);
+        session = ServerAccess.newSession(server);
+        ServerAccess.register(session, "dispatch");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < COMMANDS; i++) {
+            boolean increase = i % 2 == 0;
+            if (protocol.equals("binary")) {
+                // varint length | opcode | varint request id | varint amount, all single byte varints here
+                out.write(new byte[] {3, (byte) (increase ? 0x02 : 0x03), (byte) (i % 128), 7});
+            } else {
+                String line = (i % 4 < 2 ? "" : "#" + i + " ") + (increase ? "INCREASE 7" : "DECREASE 7") + "\n";
+                out.write(line.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        input = out.toByteArray();
+        ServerAccess.setBinary(session, protocol.equals("binary"));
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        ServerAccess.closeServer(logFile);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public int dispatch() throws Throwable {
+        Object reader = ServerAccess.newInputReader(new ByteArrayInputStream(input));
+        boolean binary = protocol.equals("binary");
+        int handled = 0;
+        while (binary ? (boolean) ServerAccess.READ_FRAME.invokeExact(reader) : (boolean) ServerAccess.READ_LINE.invokeExact(reader)) {
+            byte[] buf = (byte[]) ServerAccess.READER_BUFFER.invokeExact(reader);
+            int start = (int) ServerAccess.MESSAGE_START.get(reader);
+            int length = (int) ServerAccess.MESSAGE_LENGTH.get(reader);
+            boolean open = binary
+                    ? (boolean) ServerAccess.HANDLE_FRAME.invokeExact(session, buf, start, length)
+                    : (boolean) ServerAccess.HANDLE_LINE.invokeExact(session, buf, start, length);
+            if (open) {
+                handled++;
+            }
+        }
+        return handled;
+    }
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of one action log entry: encoding the JSON line as the writer thread does,
+// and the whole generatelogfile call including the hand-off to the ActionLog writer.
+// Run with -prof gc to see the allocation per entry.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogBenchmark {
+    private Object encoder;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+    private Path logFile;
+
+    @Setup
+    public void setup() throws Throwable {
+        encoder = ServerAccess.NEW_LOG_ENCODER.invokeExact();
+        logFile = ServerAccess.tempLogFile();
+        ServerAccess.newServer(logFile);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        ServerAccess.closeServer(logFile);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws Throwable {
+        buffer.clear();
+        ServerAccess.ENCODE.invokeExact(encoder, buffer, System.currentTimeMillis(), "benchmark-client", "INCREASE", 42L);
+        return buffer;
+    }
+
+    @Benchmark
+    public void generatelogfile() throws Throwable {
+        ServerAccess.GENERATE_LOG_FILE.invokeExact("benchmark-client", "INCREASE", 42);
+    }
+}
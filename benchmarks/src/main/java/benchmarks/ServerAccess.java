@@ -0,0 +1,177 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// The server lives in the default package, which code in a named package cannot
+// import, and JMH refuses benchmarks in the default package. The pieces under test
+// are reached through method handles instead; classes on the class path share the
+// unnamed module, so private members are accessible this way. The handles are
+// static finals, which the JIT treats as constants.
+final class ServerAccess {
+    static final Class<?> SERVER = load("Server");
+    static final Class<?> SESSION = load("Server$Session");
+    static final Class<?> CLIENT_HANDLER = load("Server$ClientHandler");
+    static final Class<?> INPUT_READER = load("CommandParser$InputReader");
+    static final Class<?> ACTION_LOG = load("ActionLog");
+    static final Class<?> CREDENTIAL_STORE = load("CredentialStore");
+    static final Class<?> LOG_ENCODER = load("LogEncoder");
+
+    // Object new LogEncoder()
+    static final MethodHandle NEW_LOG_ENCODER;
+    // void encode(Object encoder, ByteBuffer, long timestamp, String id, String action, long amount)
+    static final MethodHandle ENCODE;
+    // void generatelogfile(String, String, int)
+    static final MethodHandle GENERATE_LOG_FILE;
+    // boolean handleLine(Object session, byte[], int, int)
+    static final MethodHandle HANDLE_LINE;
+    // boolean handleFrame(Object session, byte[], int, int)
+    static final MethodHandle HANDLE_FRAME;
+    // void handleCounterOperation(Object session, boolean, long)
+    static final MethodHandle HANDLE_COUNTER_OPERATION;
+    // Object newInputReader(InputStream)
+    static final MethodHandle NEW_INPUT_READER;
+    // boolean readLine(Object reader) / readFrame(Object reader)
+    static final MethodHandle READ_LINE;
+    static final MethodHandle READ_FRAME;
+    // byte[] buffer(Object reader)
+    static final MethodHandle READER_BUFFER;
+    static final VarHandle MESSAGE_START;
+    static final VarHandle MESSAGE_LENGTH;
+
+    private static final MethodHandle NEW_CLIENT_HANDLER;
+    private static final VarHandle ACTION_LOG_FIELD;
+    private static final VarHandle CREDENTIALS;
+    private static final VarHandle CLIENT_ID;
+    private static final VarHandle BINARY;
+
+    static {
+        try {
+            MethodHandles.Lookup server = MethodHandles.privateLookupIn(SERVER, MethodHandles.lookup());
+            MethodHandles.Lookup session = MethodHandles.privateLookupIn(SESSION, MethodHandles.lookup());
+            MethodHandles.Lookup reader = MethodHandles.privateLookupIn(INPUT_READER, MethodHandles.lookup());
+
+            MethodHandles.Lookup encoder = MethodHandles.privateLookupIn(LOG_ENCODER, MethodHandles.lookup());
+            NEW_LOG_ENCODER = encoder.findConstructor(LOG_ENCODER, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            ENCODE = encoder.findVirtual(LOG_ENCODER, "encode",
+                    MethodType.methodType(void.class, ByteBuffer.class, long.class, String.class, String.class, long.class)).asType(
+                    MethodType.methodType(void.class, Object.class, ByteBuffer.class, long.class, String.class, String.class, long.class));
+            GENERATE_LOG_FILE = server.findStatic(SERVER, "generatelogfile",
+                    MethodType.methodType(void.class, String.class, String.class, int.class));
+            HANDLE_LINE = session.findVirtual(SESSION, "handleLine",
+                    MethodType.methodType(boolean.class, byte[].class, int.class, int.class)).asType(
+                    MethodType.methodType(boolean.class, Object.class, byte[].class, int.class, int.class));
+            HANDLE_FRAME = session.findVirtual(SESSION, "handleFrame",
+                    MethodType.methodType(boolean.class, byte[].class, int.class, int.class)).asType(
+                    MethodType.methodType(boolean.class, Object.class, byte[].class, int.class, int.class));
+            HANDLE_COUNTER_OPERATION = session.findVirtual(SESSION, "handleCounterOperation",
+                    MethodType.methodType(void.class, boolean.class, long.class)).asType(
+                    MethodType.methodType(void.class, Object.class, boolean.class, long.class));
+
+            NEW_INPUT_READER = reader.findConstructor(INPUT_READER, MethodType.methodType(void.class, InputStream.class))
+                    .asType(MethodType.methodType(Object.class, InputStream.class));
+            READ_LINE = reader.findVirtual(INPUT_READER, "readLine", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            READ_FRAME = reader.findVirtual(INPUT_READER, "readFrame", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            READER_BUFFER = reader.findVirtual(INPUT_READER, "buffer", MethodType.methodType(byte[].class))
+                    .asType(MethodType.methodType(byte[].class, Object.class));
+            MESSAGE_START = reader.findVarHandle(INPUT_READER, "messageStart", int.class);
+            MESSAGE_LENGTH = reader.findVarHandle(INPUT_READER, "messageLength", int.class);
+
+            MethodHandles.Lookup handler = MethodHandles.privateLookupIn(CLIENT_HANDLER, MethodHandles.lookup());
+            Class<?> sslSocket = load("javax.net.ssl.SSLSocket");
+            NEW_CLIENT_HANDLER = handler.findConstructor(CLIENT_HANDLER, MethodType.methodType(void.class, SERVER, sslSocket));
+            ACTION_LOG_FIELD = server.findStaticVarHandle(SERVER, "actionLog", ACTION_LOG);
+            CREDENTIALS = server.findVarHandle(SERVER, "credentials", CREDENTIAL_STORE);
+            CLIENT_ID = session.findVarHandle(SESSION, "clientId", String.class);
+            BINARY = session.findVarHandle(SESSION, "binary", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ServerAccess() {
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // A Server with what start() would set up for the command path: the action log
+    // (unsynced, in a temporary file) and a cheap bcrypt cost. No journal, no sockets.
+    static Object newServer(Path logFile) throws Throwable {
+        Object server = SERVER.getConstructor().newInstance();
+        Class<?> fsyncPolicy = load("ActionLog$FsyncPolicy");
+        Object fsyncNone = null;
+        for (Object policy : fsyncPolicy.getEnumConstants()) {
+            if (((Enum<?>) policy).name().equals("NONE")) {
+                fsyncNone = policy;
+            }
+        }
+        Object actionLog = ACTION_LOG.getConstructor(String.class, int.class, fsyncPolicy, long.class)
+                .newInstance(logFile.toString(), 8192, fsyncNone, 1000L);
+        ACTION_LOG_FIELD.set(actionLog);
+        Object credentials = CREDENTIAL_STORE.getConstructor(int.class, int.class, int.class, long.class, int.class)
+                .newInstance(4, 1, 64, 60_000L, 1024);
+        CREDENTIALS.set(server, credentials);
+        return server;
+    }
+
+    static void closeServer(Path logFile) throws Throwable {
+        ((AutoCloseable) ACTION_LOG_FIELD.get()).close();
+        Files.deleteIfExists(logFile);
+        // The log is written as segments named after it
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(logFile.getParent(), logFile.getFileName() + ".*")) {
+            for (Path segment : segments) {
+                Files.deleteIfExists(segment);
+            }
+        }
+    }
+
+    // A blocking session without a socket, its replies are dropped
+    static Object newSession(Object server) throws Throwable {
+        return NEW_CLIENT_HANDLER.invoke(server, null);
+    }
+
+    // Registers (or logs into) id through the normal REGISTER command
+    static void register(Object session, String id) throws Throwable {
+        byte[] line = ("REGISTER " + id + " benchmark-password").getBytes(StandardCharsets.UTF_8);
+        boolean open = (boolean) HANDLE_LINE.invokeExact(session, line, 0, line.length);
+        if (!open || CLIENT_ID.get(session) == null) {
+            throw new IllegalStateException("Registration of " + id + " failed");
+        }
+    }
+
+    // Binds the session to an already registered id without taking one of its session slots,
+    // so more threads than MAX_INSTANCES can update the same counter
+    static void bind(Object session, String id) {
+        CLIENT_ID.set(session, id);
+    }
+
+    static void setBinary(Object session, boolean binary) {
+        BINARY.set(session, binary);
+    }
+
+    static Object newInputReader(InputStream in) throws Throwable {
+        return NEW_INPUT_READER.invokeExact(in);
+    }
+
+    static Path tempLogFile() throws IOException {
+        return Files.createTempFile("benchmark-log", ".JSON");
+    }
+}